@@ -0,0 +1,97 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+package mclachlan.pacbyn;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * The images the benchmarks run on, downsized to a grid as for a worksheet:
+ * the bundled minion.png, or a synthetic photo-like image of gradients,
+ * shapes and noise with many more distinct colours.
+ */
+class BenchmarkImages
+{
+	private static final int SYNTHETIC_SIZE = 1024;
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param name
+	 * 	"minion" or "synthetic"
+	 */
+	static int[] grid(String name, int pixelsInRow) throws Exception
+	{
+		return Main.loadGrid(image(name), pixelsInRow, 1);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	static BufferedImage image(String name) throws Exception
+	{
+		switch (name)
+		{
+			case "minion":
+				return ImageIO.read(BenchmarkImages.class.getResource("/minion.png"));
+			case "synthetic":
+				return synthetic();
+			default:
+				throw new IllegalArgumentException(name);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static BufferedImage synthetic()
+	{
+		int size = SYNTHETIC_SIZE;
+		BufferedImage result = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = result.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, new Color(0x2E5E8C), size, size, new Color(0xE8C07D)));
+		g.fillRect(0, 0, size, size);
+		g.setPaint(new GradientPaint(0, size / 4, new Color(0x3B7A3B), 0, size, new Color(0x1A2E12)));
+		g.fillOval(size / 8, size / 3, size * 3 / 4, size / 2);
+		g.setColor(new Color(0xC0392B));
+		g.fillRect(size / 2, size / 8, size / 5, size / 4);
+		g.dispose();
+
+		// sensor noise, so most pixels are distinct colours
+		Random random = new Random(1);
+		for (int y = 0; y < size; y++)
+		{
+			for (int x = 0; x < size; x++)
+			{
+				int rgb = result.getRGB(x, y);
+				int r = clamp(((rgb >> 16) & 0xFF) + random.nextInt(17) - 8);
+				int gr = clamp(((rgb >> 8) & 0xFF) + random.nextInt(17) - 8);
+				int b = clamp((rgb & 0xFF) + random.nextInt(17) - 8);
+				result.setRGB(x, y, (r << 16) | (gr << 8) | b);
+			}
+		}
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int clamp(int v)
+	{
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+package mclachlan.pacbyn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The nearest centroid kernels, scalar against Vector API, over a grid's
+ * colours and a k-means palette.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class DistanceKernelBenchmark
+{
+	@Param({"100", "400"})
+	int w;
+
+	@Param({"8", "20", "64"})
+	int n;
+
+	@Param({"scalar", "vector"})
+	String kernel;
+
+	private DistanceKernel distanceKernel;
+	private float[] r, g, b;
+	private float[] pr, pg, pb;
+	private int[] labels;
+	private float[] distances = new float[2];
+
+	/*-------------------------------------------------------------------------*/
+	@Setup
+	public void setup() throws Exception
+	{
+		distanceKernel = kernel.equals("scalar") ? DistanceKernel.scalar() : DistanceKernel.get();
+		if (kernel.equals("vector") && distanceKernel == DistanceKernel.scalar())
+		{
+			throw new IllegalStateException("no Vector API kernel on this JVM");
+		}
+
+		int[] grid = BenchmarkImages.grid("synthetic", w);
+		r = new float[grid.length];
+		g = new float[grid.length];
+		b = new float[grid.length];
+		for (int i = 0; i < grid.length; i++)
+		{
+			r[i] = (grid[i] >> 16) & 0xFF;
+			g[i] = (grid[i] >> 8) & 0xFF;
+			b[i] = grid[i] & 0xFF;
+		}
+		labels = new int[grid.length];
+
+		int[] palette = KMeansPalette.palletize(n, grid.clone(), 1, false, new Random(1));
+		pr = new float[palette.length];
+		pg = new float[palette.length];
+		pb = new float[palette.length];
+		for (int j = 0; j < palette.length; j++)
+		{
+			pr[j] = (palette[j] >> 16) & 0xFF;
+			pg[j] = (palette[j] >> 8) & 0xFF;
+			pb[j] = palette[j] & 0xFF;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A block at a time, as in Lloyd's assignment.
+	 */
+	@Benchmark
+	public int[] block()
+	{
+		distanceKernel.nearest(r, g, b, 0, r.length, pr, pg, pb, pr.length, labels);
+		return labels;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * One colour at a time, as in Hamerly's rescans.
+	 */
+	@Benchmark
+	public int[] single()
+	{
+		for (int i = 0; i < r.length; i++)
+		{
+			labels[i] = distanceKernel.nearestTwo(r[i], g[i], b[i], pr, pg, pb, pr.length, distances);
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+package mclachlan.pacbyn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Mapping a grid onto a finished palette, straight and dithered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestColourBenchmark
+{
+	@Param({"40", "100", "400"})
+	int w;
+
+	@Param({"8", "20", "64"})
+	int n;
+
+	@Param({"minion", "synthetic"})
+	String image;
+
+	private int[] grid;
+	private int[] palette;
+
+	/*-------------------------------------------------------------------------*/
+	@Setup
+	public void setup() throws Exception
+	{
+		grid = BenchmarkImages.grid(image, w);
+		palette = KMeansPalette.palletize(n, grid.clone(), 1, false, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] assign()
+	{
+		int[] pixels = grid.clone();
+		Main.assignImagePixelsFromPallet(palette.length, pixels, palette, false);
+		return pixels;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] dither()
+	{
+		int[] pixels = grid.clone();
+		Quantize.FloydSteinbergDither.generateDither(pixels, palette, w, w);
+		return pixels;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+package mclachlan.pacbyn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Every way of building a palette, from a downsized grid to a palette with
+ * the grid's pixels replaced. Each call works on a fresh copy of the grid,
+ * since palletizing replaces pixels in place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaletteBenchmark
+{
+	@Param({"40", "100", "400"})
+	int w;
+
+	@Param({"8", "20", "64"})
+	int n;
+
+	@Param({"minion", "synthetic"})
+	String image;
+
+	private int[] grid;
+
+	/*-------------------------------------------------------------------------*/
+	@Setup
+	public void setup() throws Exception
+	{
+		grid = BenchmarkImages.grid(image, w);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] kmeans()
+	{
+		return KMeansPalette.palletize(n, grid.clone(), 1, false, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] kmeansAccelerated()
+	{
+		return KMeansPalette.palletize(n, grid.clone(), 1, true, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] kmeansLab()
+	{
+		return KMeansPalette.palletize(n, grid.clone(), 1, false, true, new Random(1), KMeans.NO_DEADLINE);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] kmeansMiniBatch()
+	{
+		return KMeansPalette.palletizeMiniBatch(n, grid.clone(), Math.max(n, grid.length / 8), 100, false, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] simple()
+	{
+		return Main.palletizeSimple(n, grid.clone(), false);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] octree()
+	{
+		return OctreePalette.palletize(n, grid.clone());
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] wu()
+	{
+		return WuPalette.palletize(n, grid.clone(), 0, false, 1);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] wuRefined()
+	{
+		return WuPalette.palletize(n, grid.clone(), 2, false, 1);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] gimp()
+	{
+		try
+		{
+			return Main.palletizeGimp(n, w, grid.clone());
+		}
+		catch (RuntimeException e)
+		{
+			// posterizing left more colours than n, the work is done anyway
+			return null;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public int[] floydSteinberg()
+	{
+		return Main.palletizeFloydSteinberg(n, w, grid.clone());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+package mclachlan.pacbyn;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Drawing the worksheet page, and drawing and encoding it as a PNG.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark
+{
+	@Param({"40", "100", "400"})
+	int w;
+
+	@Param({"8", "20", "64"})
+	int n;
+
+	@Param({"false", "true"})
+	boolean indexed;
+
+	private Settings settings;
+	private int[] pixels;
+	private int[] palette;
+
+	/*-------------------------------------------------------------------------*/
+	@Setup
+	public void setup() throws Exception
+	{
+		settings = new Settings();
+		settings.pixelsInRow = w;
+		settings.palletColours = n;
+		settings.indexed = indexed;
+		settings.parallelism = 1;
+
+		pixels = BenchmarkImages.grid("minion", w);
+		palette = Main.palletize(settings, pixels, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public BufferedImage render()
+	{
+		return Main.renderPage(settings, pixels, palette, new Random(1));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Benchmark
+	public long renderAndEncode() throws IOException
+	{
+		CountingStream out = new CountingStream();
+		ImageIO.write(Main.renderPage(settings, pixels, palette, new Random(1)), "png", out);
+		return out.count;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Throws the encoded page away, keeping only its length.
+	 */
+	private static class CountingStream extends OutputStream
+	{
+		private long count;
+
+		@Override
+		public void write(int b)
+		{
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The distance kernel on the Vector API, at the widest vectors the CPU has.
+ * <p>
+ * Against a block of colours, a lane per colour, with the palette entries
+ * broadcast one at a time, which pays off even for palettes smaller than a
+ * vector. Against one colour, a lane per palette entry: each lane keeps the
+ * nearest of the entries it has seen, and the lanes are settled at the end,
+ * ties going to the lowest index. Settling costs about as much as a scalar
+ * scan of a few vectors' worth of entries, so smaller palettes are left to
+ * the scalar loop, as are leftovers.
+ * <p>
+ * Kept apart from the other sources, since it needs JDK 16 or later and
+ * --add-modules jdk.incubator.vector to build and run. DistanceKernel loads
+ * it if it can.
+ */
+class VectorDistanceKernel extends DistanceKernel
+{
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+	private static final int LANES = FLOATS.length();
+
+	/** vectors' worth of palette below which one colour is scanned scalar */
+	private static final int MIN_VECTORS = 4;
+
+	/** 0, 1, 2... across the lanes */
+	private static final IntVector IOTA;
+
+	static
+	{
+		int[] iota = new int[LANES];
+		for (int i = 0; i < LANES; i++)
+		{
+			iota[i] = i;
+		}
+		IOTA = IntVector.fromArray(INTS, iota, 0);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	String name()
+	{
+		return "vector "+FLOATS.vectorBitSize()+" bit";
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	int nearest(float r, float g, float b, float[] pr, float[] pg, float[] pb, int k)
+	{
+		if (k < MIN_VECTORS * LANES)
+		{
+			return super.nearest(r, g, b, pr, pg, pb, k);
+		}
+
+		int upper = FLOATS.loopBound(k);
+		float minimumDistance = Float.MAX_VALUE;
+		int nearest = 0;
+
+		if (upper > 0)
+		{
+			FloatVector vr = FloatVector.broadcast(FLOATS, r);
+			FloatVector vg = FloatVector.broadcast(FLOATS, g);
+			FloatVector vb = FloatVector.broadcast(FLOATS, b);
+			FloatVector best = FloatVector.broadcast(FLOATS, Float.MAX_VALUE);
+			IntVector bestIndex = IntVector.zero(INTS);
+			IntVector index = IOTA;
+
+			for (int j = 0; j < upper; j += LANES)
+			{
+				FloatVector distance = distance(vr, vg, vb, pr, pg, pb, j);
+				VectorMask<Float> closer = distance.compare(VectorOperators.LT, best);
+				best = best.blend(distance, closer);
+				bestIndex = bestIndex.blend(index, closer.cast(INTS));
+				index = index.add(LANES);
+			}
+
+			minimumDistance = best.reduceLanes(VectorOperators.MIN);
+			VectorMask<Float> atMinimum = best.compare(VectorOperators.EQ, minimumDistance);
+			nearest = bestIndex.reduceLanes(VectorOperators.MIN, atMinimum.cast(INTS));
+		}
+
+		for (int j = upper; j < k; j++)
+		{
+			float dr = r - pr[j];
+			float dg = g - pg[j];
+			float db = b - pb[j];
+			float distance = dr * dr + dg * dg + db * db;
+
+			if (distance < minimumDistance)
+			{
+				minimumDistance = distance;
+				nearest = j;
+			}
+		}
+
+		return nearest;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	int nearestTwo(float r, float g, float b, float[] pr, float[] pg, float[] pb, int k, float[] distances)
+	{
+		if (k < MIN_VECTORS * LANES)
+		{
+			return super.nearestTwo(r, g, b, pr, pg, pb, k, distances);
+		}
+
+		int upper = FLOATS.loopBound(k);
+		float nearestDistance = Float.MAX_VALUE;
+		float secondDistance = Float.MAX_VALUE;
+		int nearest = 0;
+
+		if (upper > 0)
+		{
+			FloatVector vr = FloatVector.broadcast(FLOATS, r);
+			FloatVector vg = FloatVector.broadcast(FLOATS, g);
+			FloatVector vb = FloatVector.broadcast(FLOATS, b);
+			FloatVector best = FloatVector.broadcast(FLOATS, Float.MAX_VALUE);
+			FloatVector second = best;
+			IntVector bestIndex = IntVector.zero(INTS);
+			IntVector index = IOTA;
+
+			for (int j = 0; j < upper; j += LANES)
+			{
+				FloatVector distance = distance(vr, vg, vb, pr, pg, pb, j);
+				VectorMask<Float> closer = distance.compare(VectorOperators.LT, best);
+				second = second.min(distance).blend(best, closer);
+				best = best.blend(distance, closer);
+				bestIndex = bestIndex.blend(index, closer.cast(INTS));
+				index = index.add(LANES);
+			}
+
+			nearestDistance = best.reduceLanes(VectorOperators.MIN);
+			VectorMask<Float> atMinimum = best.compare(VectorOperators.EQ, nearestDistance);
+			nearest = bestIndex.reduceLanes(VectorOperators.MIN, atMinimum.cast(INTS));
+
+			// the runner up is second best in some lane, or best in another
+			VectorMask<Float> others = bestIndex.compare(VectorOperators.NE, nearest).cast(FLOATS);
+			secondDistance = Math.min(
+				second.reduceLanes(VectorOperators.MIN),
+				best.reduceLanes(VectorOperators.MIN, others));
+		}
+
+		for (int j = upper; j < k; j++)
+		{
+			float dr = r - pr[j];
+			float dg = g - pg[j];
+			float db = b - pb[j];
+			float distance = dr * dr + dg * dg + db * db;
+
+			if (distance < nearestDistance)
+			{
+				secondDistance = nearestDistance;
+				nearestDistance = distance;
+				nearest = j;
+			}
+			else if (distance < secondDistance)
+			{
+				secondDistance = distance;
+			}
+		}
+
+		distances[0] = nearestDistance;
+		distances[1] = secondDistance;
+		return nearest;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	void nearest(float[] r, float[] g, float[] b, int from, int to,
+		float[] pr, float[] pg, float[] pb, int k, int[] labels)
+	{
+		int upper = from + FLOATS.loopBound(to - from);
+
+		for (int i = from; i < upper; i += LANES)
+		{
+			FloatVector sr = FloatVector.fromArray(FLOATS, r, i);
+			FloatVector sg = FloatVector.fromArray(FLOATS, g, i);
+			FloatVector sb = FloatVector.fromArray(FLOATS, b, i);
+			FloatVector best = FloatVector.broadcast(FLOATS, Float.MAX_VALUE);
+			IntVector bestIndex = IntVector.zero(INTS);
+
+			for (int j = 0; j < k; j++)
+			{
+				FloatVector dr = sr.sub(pr[j]);
+				FloatVector dg = sg.sub(pg[j]);
+				FloatVector db = sb.sub(pb[j]);
+				FloatVector distance = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+
+				VectorMask<Float> closer = distance.compare(VectorOperators.LT, best);
+				best = best.blend(distance, closer);
+				bestIndex = bestIndex.blend(j, closer.cast(INTS));
+			}
+
+			bestIndex.intoArray(labels, i);
+		}
+
+		for (int i = upper; i < to; i++)
+		{
+			labels[i] = nearest(r[i], g[i], b[i], pr, pg, pb, k);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return squared distances from the given colour to entries j onwards,
+	 * 	summed in the scalar order
+	 */
+	private static FloatVector distance(FloatVector r, FloatVector g, FloatVector b,
+		float[] pr, float[] pg, float[] pb, int j)
+	{
+		FloatVector dr = r.sub(FloatVector.fromArray(FLOATS, pr, j));
+		FloatVector dg = g.sub(FloatVector.fromArray(FLOATS, pg, j));
+		FloatVector db = b.sub(FloatVector.fromArray(FLOATS, pb, j));
+		return dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+	}
+}
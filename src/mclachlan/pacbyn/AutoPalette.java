@@ -0,0 +1,246 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Picks the palette method for a grid (-m AUTO): the best one that a small
+ * cost model expects to finish within the budget, or failing that the one
+ * expected to finish soonest.
+ * <p>
+ * The model goes by the grid's pixel count, its distinct colour count from
+ * a histogram, and the palette size. Its constants were measured on one
+ * warmed up core, and are scaled per method by how long palettes have
+ * really been taking against the prediction, so a long running server or
+ * batch settles on this machine's speed. A method's first palette is left
+ * out, as it is mostly the JIT compiling it, and would put the method off
+ * for good.
+ * <p>
+ * K-means, the one method that iterates, is also given the deadline. Run
+ * over, it stops at the end of the iteration and keeps the centroids it has
+ * reached, which is cheaper than starting a faster method from scratch.
+ * With -mb it is mini-batch k-means instead, modelled and scaled on its own,
+ * which runs its -mbi batches whatever the deadline.
+ */
+class AutoPalette
+{
+	/** best palettes first, going by their error on the benchmark images */
+	private static final Main.PaletteMethod[] BY_QUALITY = {
+		Main.PaletteMethod.KMEANS,
+		Main.PaletteMethod.WU,
+		Main.PaletteMethod.OCTREE,
+		Main.PaletteMethod.GIMP,
+		Main.PaletteMethod.FLOYD_STEINBERG,
+		Main.PaletteMethod.SIMPLE,
+	};
+
+	/** how far one palette's timing moves the scaling for its method */
+	private static final double LEARNING_RATE = 0.3;
+
+	/** where mini-batch k-means keeps its scaling, after the methods' */
+	private static final int MINI_BATCH = Main.PaletteMethod.values().length;
+
+	// measured over predicted time and palettes made, per method by ordinal
+	private static final double[] scaling = new double[MINI_BATCH + 1];
+	private static final int[] runs = new int[MINI_BATCH + 1];
+
+	static
+	{
+		Arrays.fill(scaling, 1.0);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Chooses a method, then builds the palette with it and replaces every
+	 * input pixel with a palette colour.
+	 */
+	@SuppressWarnings("try")
+	static int[] palletize(Settings settings, int[] inputPixels, Random random)
+	{
+		long start = System.nanoTime();
+		long deadline = start + settings.budget * 1_000_000L;
+
+		Main.PaletteMethod method = null;
+		double modelled = 0, predicted = Double.MAX_VALUE;
+		try (PipelineStats.Timer timer = PipelineStats.stage("choose"))
+		{
+			int distinct = ColourHistogram.of(inputPixels).size();
+			double left = deadline - System.nanoTime();
+
+			for (Main.PaletteMethod candidate : BY_QUALITY)
+			{
+				if (!feasible(candidate, settings, inputPixels, distinct))
+				{
+					continue;
+				}
+
+				double cost = predict(candidate, settings, inputPixels.length, distinct);
+				double scaled = cost * scaling(slot(candidate, settings));
+				if (scaled < predicted)
+				{
+					// the fastest so far, in case nothing fits
+					method = candidate;
+					modelled = cost;
+					predicted = scaled;
+				}
+				if (scaled <= left)
+				{
+					break;
+				}
+			}
+		}
+		PipelineStats.paletteChoice(method.name(), predicted / 1e6, settings.budget);
+
+		long began = System.nanoTime();
+		int[] result;
+		if (method == Main.PaletteMethod.KMEANS && settings.miniBatchSize <= 0)
+		{
+			result = KMeansPalette.palletize(settings.palletColours, inputPixels,
+				settings.parallelism, settings.accelerated, settings.lab, random, deadline);
+		}
+		else
+		{
+			Settings chosen = settings.copy();
+			chosen.paletteMethod = method;
+			result = Main.palletize(chosen, inputPixels, random);
+		}
+		learn(slot(method, settings), (System.nanoTime() - began) / modelled);
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the expected time in nanoseconds for a method, on one warmed
+	 * 	up core but for the threads k-means splits its work over
+	 */
+	private static double predict(Main.PaletteMethod method, Settings settings, int pixels, int distinct)
+	{
+		double colours = settings.palletColours;
+
+		switch (method)
+		{
+			case KMEANS:
+				if (settings.miniBatchSize > 0)
+				{
+					// the histogram, a distance to every cluster per sample of
+					// the seeding fit and each batch, then the labelling
+					double batch = Math.max(settings.miniBatchSize, colours);
+					return 50.0 * pixels + 3.0 * (settings.miniBatchIterations + 10) * batch * colours
+						+ 3.0 * distinct * colours;
+				}
+				// tens of iterations over the distinct colours, a distance to
+				// every cluster each, split over threads for large histograms
+				int threads = Math.max(1, Math.min(settings.parallelism, distinct / 4096));
+				return 200.0 * distinct * colours / threads;
+
+			case WU:
+				// histogram and moments, then the refinement's assignments
+				return 1e6 + 35.0 * pixels
+					+ (settings.refinement > 0 ? 2.5 * (settings.refinement + 1) * distinct * colours : 0);
+
+			case OCTREE:
+				return 75.0 * pixels + 50.0 * distinct;
+
+			case GIMP:
+				return 80.0 * pixels;
+
+			case FLOYD_STEINBERG:
+				// every pixel against the 256 colours it starts with, then
+				// dithered against the reduced palette
+				return 1e6 + 280.0 * pixels + 3.0 * pixels * colours;
+
+			case SIMPLE:
+			default:
+				return 170.0 * pixels + 20.0 * distinct * colours;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return false for methods that would throw on this grid
+	 */
+	private static boolean feasible(Main.PaletteMethod method, Settings settings, int[] inputPixels, int distinct)
+	{
+		switch (method)
+		{
+			case SIMPLE:
+				// needs as many colours as the palette holds
+				return distinct >= settings.palletColours;
+
+			case GIMP:
+				// needs the posterized grid to have no more colours than the
+				// palette holds
+				int levels = settings.palletColours / 2 - 1;
+				if (levels < 1)
+				{
+					return false;
+				}
+				Set<Integer> colours = new HashSet<>();
+				for (int i = 0; i < inputPixels.length && colours.size() <= settings.palletColours; i++)
+				{
+					colours.add(Main.posterize(inputPixels[i], levels));
+				}
+				return colours.size() <= settings.palletColours;
+
+			default:
+				return true;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return where the method's scaling is kept
+	 */
+	private static int slot(Main.PaletteMethod method, Settings settings)
+	{
+		if (method == Main.PaletteMethod.KMEANS && settings.miniBatchSize > 0)
+		{
+			return MINI_BATCH;
+		}
+		return method.ordinal();
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static synchronized double scaling(int slot)
+	{
+		return scaling[slot];
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param ratio
+	 * 	how long a palette took over how long the unscaled model said
+	 */
+	private static synchronized void learn(int slot, double ratio)
+	{
+		if (runs[slot]++ > 0)
+		{
+			scaling[slot] += LEARNING_RATE * (ratio - scaling[slot]);
+		}
+	}
+}
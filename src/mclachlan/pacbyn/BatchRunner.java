@@ -0,0 +1,383 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Turns many images into worksheets in one JVM. Each image flows through
+ * decode, resize, palettise, render and encode stages, each with its own
+ * thread pool, connected by bounded queues. A slow stage backs up the
+ * queues in front of it rather than letting decoded images or rendered
+ * pages pile up, so memory stays bounded however many images there are.
+ */
+class BatchRunner
+{
+	/** jobs that may wait between two stages */
+	private static final int QUEUE_CAPACITY = 2;
+
+	/** marks the end of the input on a queue */
+	private static final Job END = new Job(null, null);
+
+	private final Settings settings;
+	private final File outputDir;
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/*-------------------------------------------------------------------------*/
+	BatchRunner(Settings settings, File outputDir)
+	{
+		// images are processed side by side, so each palette gets one thread
+		this.settings = settings.copy();
+		this.settings.parallelism = 1;
+		this.outputDir = outputDir;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param source
+	 * 	a directory of images, or a manifest file listing one image path per
+	 * 	line (relative paths resolve against the manifest's directory, blank
+	 * 	lines and lines starting with # are skipped)
+	 * @return the number of images that failed
+	 */
+	int run(File source) throws IOException, InterruptedException
+	{
+		List<File> inputs = listInputs(source);
+		if (!outputDir.exists() && !outputDir.mkdirs())
+		{
+			throw new IOException("Can't create output dir: "+outputDir);
+		}
+
+		WorksheetCache cache = settings.newCache();
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		int quarter = Math.max(1, cores / 4);
+
+		Stage encode = new Stage("encode", quarter, null, job ->
+		{
+			ImageIO.write(job.page, "png", job.output);
+			System.out.println(job.input+" -> "+job.output);
+		});
+		Stage render = new Stage("render", quarter, encode, job ->
+		{
+			job.page = Main.renderPage(settings, job.pixels, job.palette, new Random(job.renderSeed));
+			job.pixels = null;
+		});
+		Stage palettise = new Stage("palettise", Math.max(1, cores / 2), render, job ->
+		{
+			if (job.palette != null)
+			{
+				return;
+			}
+
+			Random random = settings.newRandom();
+			job.palette = Main.palletize(settings, job.pixels, random);
+			job.renderSeed = random.nextLong();
+			if (cache != null)
+			{
+				cache.putPalette(job.hash, settings, new WorksheetCache.Palettised(job.pixels, job.palette, job.renderSeed));
+			}
+		});
+		Stage resize = new Stage("resize", quarter, palettise, job ->
+		{
+			if (job.image == null)
+			{
+				return;
+			}
+
+			job.pixels = Main.loadGrid(job.image, settings.pixelsInRow, settings.parallelism);
+			job.image = null;
+			if (cache != null)
+			{
+				cache.putGrid(job.hash, settings.pixelsInRow, job.pixels);
+			}
+		});
+		Stage decode = new Stage("decode", quarter, resize, job ->
+		{
+			// later stages pass over whatever the cache already has
+			if (cache != null)
+			{
+				job.hash = WorksheetCache.hash(job.input);
+
+				WorksheetCache.Palettised cached = cache.getPalette(job.hash, settings);
+				if (cached != null)
+				{
+					job.pixels = cached.pixels;
+					job.palette = cached.palette;
+					job.renderSeed = cached.renderSeed;
+					return;
+				}
+
+				job.pixels = cache.getGrid(job.hash, settings.pixelsInRow);
+				if (job.pixels != null)
+				{
+					return;
+				}
+			}
+
+			job.image = ImageLoader.read(job.input, settings.pixelsInRow);
+			if (job.image == null)
+			{
+				throw new IOException("Not a readable image");
+			}
+		});
+
+		List<Stage> stages = Arrays.asList(decode, resize, palettise, render, encode);
+		for (Stage stage : stages)
+		{
+			stage.start();
+		}
+
+		Set<String> taken = new HashSet<>();
+		for (File input : inputs)
+		{
+			taken.add(key(input));
+		}
+		for (File input : inputs)
+		{
+			decode.queue.put(new Job(input, outputFile(input, taken)));
+		}
+		decode.finish();
+
+		for (Stage stage : stages)
+		{
+			stage.awaitTermination();
+		}
+
+		System.out.println(inputs.size()+" images, "+failures.get()+" failed");
+		return failures.get();
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private List<File> listInputs(File source) throws IOException
+	{
+		List<File> result = new ArrayList<>();
+
+		if (source.isDirectory())
+		{
+			Set<String> suffixes = new HashSet<>();
+			for (String suffix : ImageIO.getReaderFileSuffixes())
+			{
+				suffixes.add(suffix.toLowerCase());
+			}
+
+			File[] files = source.listFiles();
+			if (files != null)
+			{
+				Arrays.sort(files);
+				for (File file : files)
+				{
+					String name = file.getName();
+					int dot = name.lastIndexOf('.');
+					if (file.isFile() && dot > 0 && suffixes.contains(name.substring(dot + 1).toLowerCase()))
+					{
+						result.add(file);
+					}
+				}
+			}
+		}
+		else
+		{
+			File base = source.getAbsoluteFile().getParentFile();
+			for (String line : Files.readAllLines(source.toPath(), StandardCharsets.UTF_8))
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{
+					continue;
+				}
+
+				File file = new File(line);
+				result.add(file.isAbsolute() ? file : new File(base, line));
+			}
+		}
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param taken
+	 * 	the inputs and the outputs handed out so far, which the output must
+	 * 	not overwrite; it is added to them
+	 * @return the input's name with a .png suffix in the output dir, numbered
+	 * 	when that is taken, so that a.jpg and a.png, or an input PNG in the
+	 * 	output dir, don't clash
+	 */
+	private File outputFile(File input, Set<String> taken) throws IOException
+	{
+		String name = input.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+		{
+			name = name.substring(0, dot);
+		}
+
+		File result = new File(outputDir, name+".png");
+		for (int i = 2; !taken.add(key(result)); i++)
+		{
+			result = new File(outputDir, name+"-"+i+".png");
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the file's path to compare against others, ignoring case in
+	 * 	case the file system does
+	 */
+	private static String key(File file) throws IOException
+	{
+		return file.getCanonicalPath().toLowerCase(Locale.ROOT);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * One image on its way through the pipeline. Each stage drops what the
+	 * later stages no longer need.
+	 */
+	private static class Job
+	{
+		final File input, output;
+		String hash;
+		BufferedImage image;
+		int[] pixels;
+		int[] palette;
+		long renderSeed;
+		BufferedImage page;
+
+		Job(File input, File output)
+		{
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private interface Step
+	{
+		void process(Job job) throws Exception;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A pool of workers taking jobs off a bounded queue and handing them on
+	 * to the next stage. When the last worker sees the end of the input it
+	 * passes the end on, once for each worker of the next stage.
+	 */
+	private class Stage
+	{
+		private final String name;
+		private final int threads;
+		private final Stage next;
+		private final Step step;
+		private final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		private final AtomicInteger running;
+		private final ExecutorService pool;
+
+		Stage(String name, int threads, Stage next, Step step)
+		{
+			this.name = name;
+			this.threads = threads;
+			this.next = next;
+			this.step = step;
+			this.running = new AtomicInteger(threads);
+			this.pool = Executors.newFixedThreadPool(threads, runnable ->
+			{
+				Thread thread = new Thread(runnable, "pacbyn-"+name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		void start()
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				pool.execute(this::work);
+			}
+			pool.shutdown();
+		}
+
+		void finish() throws InterruptedException
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				queue.put(END);
+			}
+		}
+
+		void awaitTermination() throws InterruptedException
+		{
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		@SuppressWarnings("try")
+		private void work()
+		{
+			try
+			{
+				Job job;
+				while ((job = queue.take()) != END)
+				{
+					try (PipelineStats.Timer timer = PipelineStats.stage(name))
+					{
+						step.process(job);
+						if (next != null)
+						{
+							next.queue.put(job);
+						}
+					}
+					catch (InterruptedException e)
+					{
+						throw e;
+					}
+					catch (Throwable e)
+					{
+						// errors too, or the worker would die without passing
+						// the end on and the batch would hang
+						failures.incrementAndGet();
+						System.err.println(job.input+": "+name+" failed: "+e);
+					}
+				}
+
+				if (running.decrementAndGet() == 0 && next != null)
+				{
+					next.finish();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
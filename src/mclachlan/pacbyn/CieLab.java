@@ -0,0 +1,134 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+/**
+ * Conversion between sRGB and CIE L*a*b* (D65 white), the colour space -lab
+ * fits palettes in. Straight line distance in Lab follows how different two
+ * colours look much more closely than in sRGB, which spends too much of a
+ * palette on shades the eye can't tell apart and too little on the subtle
+ * ones of skin and sky.
+ * <p>
+ * Going to Lab, each channel is linearised through a 256 entry table,
+ * leaving a matrix and three cube roots per colour. Callers convert the
+ * distinct colours of a grid's histogram once, then cluster and search
+ * those as they would sRGB channels, so no pixel costs more than in sRGB.
+ * Coming back is only ever done for palette entries.
+ */
+class CieLab
+{
+	// the D65 reference white
+	private static final double XN = 0.95047, YN = 1.0, ZN = 1.08883;
+
+	/** (6/29)^3, below which f(t) is a straight line, not a cube root */
+	private static final double EPSILON = 216.0 / 24389.0;
+
+	/** (29/3)^3, the slope of that line */
+	private static final double KAPPA = 24389.0 / 27.0;
+
+	/** each sRGB channel value, in linear light */
+	private static final double[] LINEAR = new double[256];
+
+	static
+	{
+		for (int i = 0; i < LINEAR.length; i++)
+		{
+			double c = i / 255.0;
+			LINEAR[i] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private CieLab()
+	{
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Converts 0xRRGGBB colours to Lab, one plane per component.
+	 *
+	 * @param n
+	 * 	the number of colours to convert
+	 */
+	static void toLab(int[] colours, int n, float[] l, float[] a, float[] b)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			double r = LINEAR[(colours[i] >> 16) & 0xFF];
+			double g = LINEAR[(colours[i] >> 8) & 0xFF];
+			double bl = LINEAR[colours[i] & 0xFF];
+
+			double fx = f((0.4124564 * r + 0.3575761 * g + 0.1804375 * bl) / XN);
+			double fy = f((0.2126729 * r + 0.7151522 * g + 0.0721750 * bl) / YN);
+			double fz = f((0.0193339 * r + 0.1191920 * g + 0.9503041 * bl) / ZN);
+
+			l[i] = (float)(116 * fy - 16);
+			a[i] = (float)(500 * (fx - fy));
+			b[i] = (float)(200 * (fy - fz));
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the 0xRRGGBB colour nearest to each of the first k Lab
+	 * 	colours, those outside sRGB clamped to its edge
+	 */
+	static int[] toRgb(float[] l, float[] a, float[] b, int k)
+	{
+		int[] result = new int[k];
+		for (int j = 0; j < k; j++)
+		{
+			double fy = (l[j] + 16) / 116.0;
+			double x = XN * fInverse(fy + a[j] / 500.0);
+			double y = YN * fInverse(fy);
+			double z = ZN * fInverse(fy - b[j] / 200.0);
+
+			int r = encode(3.2404542 * x - 1.5371385 * y - 0.4985314 * z);
+			int g = encode(-0.9692660 * x + 1.8760108 * y + 0.0415560 * z);
+			int bl = encode(0.0556434 * x - 0.2040259 * y + 1.0572252 * z);
+
+			result[j] = (r << 16) | (g << 8) | bl;
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static double f(double t)
+	{
+		return t > EPSILON ? Math.cbrt(t) : (KAPPA * t + 16) / 116;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static double fInverse(double t)
+	{
+		return t * t * t > EPSILON ? t * t * t : (116 * t - 16) / KAPPA;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return a linear light channel as an sRGB channel value in [0, 255]
+	 */
+	private static int encode(double c)
+	{
+		c = c <= 0.0031308 ? 12.92 * c : 1.055 * Math.pow(c, 1 / 2.4) - 0.055;
+		return (int)Math.max(0, Math.min(255, Math.round(c * 255)));
+	}
+}
@@ -0,0 +1,173 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+
+/**
+ * The distinct 0xRRGGBB colours of a pixel grid, in order of first
+ * appearance, with the number of pixels of each and the index of every
+ * pixel's colour. Alpha is ignored.
+ */
+class ColourHistogram
+{
+	private static final int EMPTY = -1;
+
+	private final int[] colours;
+	private final int[] counts;
+	private final int[] pixelIndex;
+
+	/*-------------------------------------------------------------------------*/
+	private ColourHistogram(int[] colours, int[] counts, int[] pixelIndex)
+	{
+		this.colours = colours;
+		this.counts = counts;
+		this.pixelIndex = pixelIndex;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	static ColourHistogram of(int[] pixels)
+	{
+		int[] pixelIndex = new int[pixels.length];
+
+		// open addressing table of colour -> index into colours
+		int capacity = 1024;
+		int[] keys = new int[capacity];
+		int[] values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+
+		int[] colours = new int[256];
+		int[] counts = new int[256];
+		int size = 0;
+
+		for (int i = 0; i < pixels.length; i++)
+		{
+			int colour = pixels[i] & 0xFFFFFF;
+			int slot = hash(colour) & (capacity - 1);
+
+			while (keys[slot] != EMPTY && keys[slot] != colour)
+			{
+				slot = (slot + 1) & (capacity - 1);
+			}
+
+			int index;
+			if (keys[slot] == EMPTY)
+			{
+				index = size++;
+				if (index == colours.length)
+				{
+					colours = Arrays.copyOf(colours, index * 2);
+					counts = Arrays.copyOf(counts, index * 2);
+				}
+				colours[index] = colour;
+				keys[slot] = colour;
+				values[slot] = index;
+
+				// keep the table at most half full
+				if (size * 2 > capacity)
+				{
+					capacity *= 2;
+					keys = new int[capacity];
+					values = new int[capacity];
+					Arrays.fill(keys, EMPTY);
+					for (int j = 0; j < size; j++)
+					{
+						int s = hash(colours[j]) & (capacity - 1);
+						while (keys[s] != EMPTY)
+						{
+							s = (s + 1) & (capacity - 1);
+						}
+						keys[s] = colours[j];
+						values[s] = j;
+					}
+				}
+			}
+			else
+			{
+				index = values[slot];
+			}
+
+			counts[index]++;
+			pixelIndex[i] = index;
+		}
+
+		return new ColourHistogram(
+			Arrays.copyOf(colours, size),
+			Arrays.copyOf(counts, size),
+			pixelIndex);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int hash(int colour)
+	{
+		int h = colour * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	int size()
+	{
+		return colours.length;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	int[] getColours()
+	{
+		return colours;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	int[] getCounts()
+	{
+		return counts;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Splits the distinct colours into one plane per channel, for clustering.
+	 *
+	 * @param lab
+	 * 	true for CIE Lab planes rather than sRGB
+	 */
+	void channels(float[] x, float[] y, float[] z, boolean lab)
+	{
+		if (lab)
+		{
+			CieLab.toLab(colours, colours.length, x, y, z);
+			return;
+		}
+
+		for (int i = 0; i < colours.length; i++)
+		{
+			x[i] = (colours[i] >> 16) & 0xFF;
+			y[i] = (colours[i] >> 8) & 0xFF;
+			z[i] = (colours[i] >> 0) & 0xFF;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return for each pixel, the index of its colour in {@link #getColours()}
+	 */
+	int[] getPixelIndex()
+	{
+		return pixelIndex;
+	}
+}
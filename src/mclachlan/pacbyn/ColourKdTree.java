@@ -0,0 +1,230 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+/**
+ * A k-d tree over three dimensional colour points, for nearest neighbour
+ * queries in logarithmic time against large source palettes.
+ * <p>
+ * The tree is implicit: points are ordered so that each range's median is
+ * its node, with the lower half to the left and the upper half to the right.
+ * Each node splits on the axis of widest spread in its range. Ties go to the
+ * lowest point index, as a linear scan would give. Not thread safe.
+ */
+class ColourKdTree implements NearestColour
+{
+	private final float[][] coords;
+
+	/** point indices in tree order */
+	private final int[] order;
+
+	/** split axis of the node at each position in order */
+	private final byte[] axis;
+
+	// the query in progress
+	private float qx, qy, qz;
+	private int best;
+	private float bestDistance;
+
+	/*-------------------------------------------------------------------------*/
+	ColourKdTree(int[] palette)
+	{
+		this(channel(palette, 16), channel(palette, 8), channel(palette, 0));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	ColourKdTree(float[] x, float[] y, float[] z)
+	{
+		this.coords = new float[][]{x, y, z};
+		this.order = new int[x.length];
+		this.axis = new byte[x.length];
+
+		for (int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+		build(0, order.length);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static float[] channel(int[] palette, int shift)
+	{
+		float[] result = new float[palette.length];
+		for (int i = 0; i < palette.length; i++)
+		{
+			result[i] = (palette[i] >> shift) & 0xFF;
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void build(int lo, int hi)
+	{
+		if (hi - lo <= 1)
+		{
+			return;
+		}
+
+		// split on the axis with the widest spread
+		byte split = 0;
+		float widest = -1;
+		for (byte a = 0; a < 3; a++)
+		{
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int i = lo; i < hi; i++)
+			{
+				float v = coords[a][order[i]];
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (max - min > widest)
+			{
+				widest = max - min;
+				split = a;
+			}
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(coords[split], lo, hi - 1, mid);
+		axis[mid] = split;
+
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Quickselect: partially orders order[lo..hi] so that position n holds
+	 * the point it would hold if fully sorted on the given coordinate.
+	 */
+	private void select(float[] key, int lo, int hi, int n)
+	{
+		while (lo < hi)
+		{
+			float pivot = key[order[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (key[order[i]] < pivot)
+				{
+					i++;
+				}
+				while (key[order[j]] > pivot)
+				{
+					j--;
+				}
+				if (i <= j)
+				{
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+
+			if (n <= j)
+			{
+				hi = j;
+			}
+			else if (n >= i)
+			{
+				lo = i;
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	public int nearest(int r, int g, int b)
+	{
+		return nearest((float)r, (float)g, (float)b);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the index of the point nearest to the given coordinates, or -1
+	 * 	if the tree is empty
+	 */
+	int nearest(float x, float y, float z)
+	{
+		qx = x;
+		qy = y;
+		qz = z;
+		best = -1;
+		bestDistance = Float.MAX_VALUE;
+
+		search(0, order.length);
+
+		return best;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void search(int lo, int hi)
+	{
+		if (lo >= hi)
+		{
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int p = order[mid];
+
+		float dx = qx - coords[0][p];
+		float dy = qy - coords[1][p];
+		float dz = qz - coords[2][p];
+		float distance = dx * dx + dy * dy + dz * dz;
+		if (distance < bestDistance || (distance == bestDistance && p < best))
+		{
+			bestDistance = distance;
+			best = p;
+		}
+
+		if (hi - lo == 1)
+		{
+			return;
+		}
+
+		int a = axis[mid];
+		float diff = (a == 0 ? qx : a == 1 ? qy : qz) - coords[a][p];
+
+		// nearer side first, then the far side only if it could hold a match
+		if (diff < 0)
+		{
+			search(lo, mid);
+			if (diff * diff <= bestDistance)
+			{
+				search(mid + 1, hi);
+			}
+		}
+		else
+		{
+			search(mid + 1, hi);
+			if (diff * diff <= bestDistance)
+			{
+				search(lo, mid);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+/**
+ * The inner loop of fitting a palette: which of k colours, held as channel
+ * planes, is nearest to a colour by squared distance. Ties go to the lowest
+ * index, and every distance is summed in the same order, so all kernels
+ * give exactly the same answers.
+ * <p>
+ * This class is the plain scalar kernel. {@link #get} returns the Vector
+ * API one instead when it was built (it needs JDK 16 or later) and the JVM
+ * was started with --add-modules jdk.incubator.vector.
+ */
+class DistanceKernel
+{
+	private static final DistanceKernel SCALAR = new DistanceKernel();
+	private static final DistanceKernel BEST = load();
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the fastest kernel this JVM can run
+	 */
+	static DistanceKernel get()
+	{
+		return BEST;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	static DistanceKernel scalar()
+	{
+		return SCALAR;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static DistanceKernel load()
+	{
+		try
+		{
+			return (DistanceKernel)Class.forName("mclachlan.pacbyn.VectorDistanceKernel")
+				.getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			// not built, or the incubator module isn't there
+			return SCALAR;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	String name()
+	{
+		return "scalar";
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the index of the entry in [0, k) nearest to the given colour
+	 */
+	int nearest(float r, float g, float b, float[] pr, float[] pg, float[] pb, int k)
+	{
+		float minimumDistance = Float.MAX_VALUE;
+		int nearest = 0;
+
+		for (int j = 0; j < k; j++)
+		{
+			float dr = r - pr[j];
+			float dg = g - pg[j];
+			float db = b - pb[j];
+			float distance = dr * dr + dg * dg + db * db;
+
+			if (distance < minimumDistance)
+			{
+				minimumDistance = distance;
+				nearest = j;
+			}
+		}
+
+		return nearest;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * As {@link #nearest(float, float, float, float[], float[], float[], int)},
+	 * also giving the squared distances to the nearest and second nearest
+	 * entries.
+	 *
+	 * @param distances
+	 * 	receives the nearest distance then the second, Float.MAX_VALUE if
+	 * 	there is no second
+	 */
+	int nearestTwo(float r, float g, float b, float[] pr, float[] pg, float[] pb, int k, float[] distances)
+	{
+		float nearestDistance = Float.MAX_VALUE;
+		float secondDistance = Float.MAX_VALUE;
+		int nearest = 0;
+
+		for (int j = 0; j < k; j++)
+		{
+			float dr = r - pr[j];
+			float dg = g - pg[j];
+			float db = b - pb[j];
+			float distance = dr * dr + dg * dg + db * db;
+
+			if (distance < nearestDistance)
+			{
+				secondDistance = nearestDistance;
+				nearestDistance = distance;
+				nearest = j;
+			}
+			else if (distance < secondDistance)
+			{
+				secondDistance = distance;
+			}
+		}
+
+		distances[0] = nearestDistance;
+		distances[1] = secondDistance;
+		return nearest;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Labels a block of colours [from, to) with the index of the entry in
+	 * [0, k) nearest to each.
+	 */
+	void nearest(float[] r, float[] g, float[] b, int from, int to,
+		float[] pr, float[] pg, float[] pb, int k, int[] labels)
+	{
+		for (int i = from; i < to; i++)
+		{
+			labels[i] = nearest(r[i], g[i], b[i], pr, pg, pb, k);
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Area-average downscaling straight off an image's raster, the same
+ * filter as Image.SCALE_SMOOTH: each output pixel is the coverage weighted
+ * mean of the source pixels under it, averaged with premultiplied alpha.
+ * <p>
+ * Coverage is worked out in whole units by giving each source pixel
+ * outputWidth units and each output pixel sourceWidth units across (and
+ * the same down), so every weight is an exact integer. Downscaling, a
+ * source pixel falls across at most two output columns, and its split is
+ * worked out once per column rather than once per pixel.
+ * <p>
+ * With a parallelism above 1, bands of output rows are scaled side by side
+ * on a fork-join pool. Each band reads only the source rows under it.
+ */
+class Downscaler
+{
+	/** output rows in a band, at least */
+	private static final int MIN_BAND_ROWS = 4;
+
+	private final BufferedImage image;
+	private final int sourceWidth, sourceHeight;
+	private final int width, height;
+	private final int[] result;
+
+	/** per source column, the first output column it covers */
+	private final int[] column;
+
+	/** per source column, its units in that output column and in the next */
+	private final int[] firstWeight, secondWeight;
+
+	/*-------------------------------------------------------------------------*/
+	private Downscaler(BufferedImage image, int width, int height)
+	{
+		this.image = image;
+		this.sourceWidth = image.getWidth();
+		this.sourceHeight = image.getHeight();
+		this.width = width;
+		this.height = height;
+		this.result = new int[width * height];
+
+		column = new int[sourceWidth];
+		firstWeight = new int[sourceWidth];
+		secondWeight = new int[sourceWidth];
+		for (int sx = 0; sx < sourceWidth; sx++)
+		{
+			long start = (long)sx * width;
+			long end = start + width;
+			int x = (int)(start / sourceWidth);
+			long boundary = (long)(x + 1) * sourceWidth;
+
+			column[sx] = x;
+			firstWeight[sx] = (int)(Math.min(end, boundary) - start);
+			secondWeight[sx] = (int)Math.max(0, end - boundary);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param width
+	 * 	output width, no more than the image's
+	 * @param height
+	 * 	output height, no more than the image's
+	 * @param parallelism
+	 * 	how many threads to scale on
+	 * @return the scaled pixels as ARGB, row by row
+	 */
+	static int[] scale(BufferedImage image, int width, int height, int parallelism)
+	{
+		if (width > image.getWidth() || height > image.getHeight())
+		{
+			throw new IllegalArgumentException("can only scale down");
+		}
+
+		Downscaler scaler = new Downscaler(image, width, height);
+
+		int bands = Math.min(parallelism, height / MIN_BAND_ROWS);
+		if (bands <= 1)
+		{
+			scaler.scaleRows(0, height);
+			return scaler.result;
+		}
+
+		List<Band> tasks = new ArrayList<>();
+		for (int i = 0; i < bands; i++)
+		{
+			tasks.add(scaler.new Band(height * i / bands, height * (i + 1) / bands));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			pool.invoke(new RecursiveAction()
+			{
+				@Override
+				protected void compute()
+				{
+					invokeAll(tasks);
+				}
+			});
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return scaler.result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void scaleRows(int from, int to)
+	{
+		double[] alphas = new double[width];
+		double[] reds = new double[width];
+		double[] greens = new double[width];
+		double[] blues = new double[width];
+		int[] row = new int[sourceWidth];
+		Object elements = null;
+
+		// the units an output pixel covers
+		double area = (double)sourceWidth * sourceHeight;
+
+		for (int y = from; y < to; y++)
+		{
+			Arrays.fill(alphas, 0D);
+			Arrays.fill(reds, 0D);
+			Arrays.fill(greens, 0D);
+			Arrays.fill(blues, 0D);
+
+			// the source rows under this output row, and their units in it
+			long top = (long)y * sourceHeight;
+			long bottom = top + sourceHeight;
+			int firstRow = (int)(top / height);
+			int lastRow = (int)((bottom - 1) / height);
+
+			for (int sy = firstRow; sy <= lastRow; sy++)
+			{
+				long rowTop = Math.max(top, (long)sy * height);
+				long rowBottom = Math.min(bottom, (long)(sy + 1) * height);
+				double rowWeight = rowBottom - rowTop;
+
+				elements = readRow(sy, row, elements);
+
+				for (int sx = 0; sx < sourceWidth; sx++)
+				{
+					int argb = row[sx];
+					double a = argb >>> 24;
+					double r = (argb >> 16) & 0xFF;
+					double g = (argb >> 8) & 0xFF;
+					double b = (argb >> 0) & 0xFF;
+					if (a != 255)
+					{
+						r = r * a / 255;
+						g = g * a / 255;
+						b = b * a / 255;
+					}
+
+					int x = column[sx];
+					double weight = firstWeight[sx] * rowWeight;
+					alphas[x] += a * weight;
+					reds[x] += r * weight;
+					greens[x] += g * weight;
+					blues[x] += b * weight;
+
+					if (secondWeight[sx] > 0)
+					{
+						weight = secondWeight[sx] * rowWeight;
+						alphas[x + 1] += a * weight;
+						reds[x + 1] += r * weight;
+						greens[x + 1] += g * weight;
+						blues[x + 1] += b * weight;
+					}
+				}
+			}
+
+			for (int x = 0; x < width; x++)
+			{
+				// un-premultiply and average in the one divide
+				double divisor = area;
+				int a = (int)Math.round(alphas[x] / area);
+				if (a <= 0)
+				{
+					a = 0;
+				}
+				else if (a >= 255)
+				{
+					a = 255;
+				}
+				else
+				{
+					divisor = alphas[x] / 255;
+				}
+
+				int r = clamp((int)Math.round(reds[x] / divisor));
+				int g = clamp((int)Math.round(greens[x] / divisor));
+				int b = clamp((int)Math.round(blues[x] / divisor));
+				result[y * width + x] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Reads one source row as ARGB. The common types ImageIO decodes to are
+	 * read as raw raster elements, one sample per band in R, G, B (A) order,
+	 * and anything else goes through the colour model.
+	 *
+	 * @param elements
+	 * 	a buffer from an earlier call, or null
+	 * @return the buffer to pass next time
+	 */
+	private Object readRow(int y, int[] row, Object elements)
+	{
+		Raster raster = image.getRaster();
+
+		switch (image.getType())
+		{
+			case BufferedImage.TYPE_INT_RGB:
+			{
+				int[] data = (int[])raster.getDataElements(0, y, sourceWidth, 1, elements);
+				for (int x = 0; x < sourceWidth; x++)
+				{
+					row[x] = 0xFF000000 | data[x];
+				}
+				return data;
+			}
+			case BufferedImage.TYPE_INT_ARGB:
+			{
+				int[] data = (int[])raster.getDataElements(0, y, sourceWidth, 1, elements);
+				System.arraycopy(data, 0, row, 0, sourceWidth);
+				return data;
+			}
+			case BufferedImage.TYPE_3BYTE_BGR:
+			{
+				byte[] data = (byte[])raster.getDataElements(0, y, sourceWidth, 1, elements);
+				for (int x = 0, i = 0; x < sourceWidth; x++, i += 3)
+				{
+					row[x] = 0xFF000000 | ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+				}
+				return data;
+			}
+			case BufferedImage.TYPE_4BYTE_ABGR:
+			{
+				byte[] data = (byte[])raster.getDataElements(0, y, sourceWidth, 1, elements);
+				for (int x = 0, i = 0; x < sourceWidth; x++, i += 4)
+				{
+					row[x] = ((data[i + 3] & 0xFF) << 24) | ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+				}
+				return data;
+			}
+			default:
+				image.getRGB(0, y, sourceWidth, 1, row, 0, sourceWidth);
+				return null;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int clamp(int v)
+	{
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A range of output rows.
+	 */
+	private class Band extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+
+		Band(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			scaleRows(from, to);
+		}
+	}
+}
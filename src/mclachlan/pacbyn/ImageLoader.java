@@ -0,0 +1,91 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes an image no larger than the grid needs. Only every nth row and
+ * column is decoded, with n as large as it can be while the image stays at
+ * least {@link #OVERSAMPLE} times the grid across, so the area average down
+ * to the grid still has a few source pixels per cell to smooth over. A
+ * 48 megapixel photo for a 40 cell grid decodes to about 160 pixels across,
+ * and memory follows the grid rather than the file.
+ */
+class ImageLoader
+{
+	/** how many times the grid size an image is decoded to, at least */
+	static final int OVERSAMPLE = 4;
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param input
+	 * 	a File or InputStream, as for ImageIO.createImageInputStream
+	 * @param pixelsInRow
+	 * 	the grid the image will be scaled down to
+	 * @return the decoded image, or null if no reader can read the input (as
+	 * 	with ImageIO.read)
+	 * @throws IllegalArgumentException
+	 * 	if the image isn't square, as subsampling could make it so
+	 */
+	static BufferedImage read(Object input, int pixelsInRow) throws IOException
+	{
+		try (ImageInputStream stream = ImageIO.createImageInputStream(input))
+		{
+			if (stream == null)
+			{
+				throw new IOException("Can't read input: "+input);
+			}
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+			{
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(stream, true, true);
+
+				int size = reader.getWidth(0);
+				if (reader.getHeight(0) != size)
+				{
+					throw new IllegalArgumentException("requires a square image");
+				}
+				int step = Math.max(1, size / (pixelsInRow * OVERSAMPLE));
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+
+				return reader.read(0, param);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+}
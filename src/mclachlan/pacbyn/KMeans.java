@@ -0,0 +1,796 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lloyd's k-means over struct-of-arrays colour channels, seeded with greedy
+ * k-means++. All working buffers are allocated up front, an iteration
+ * allocates nothing.
+ * <p>
+ * Samples may carry integer weights, so a histogram of distinct colours
+ * clusters exactly as the pixels it was built from would.
+ * <p>
+ * With a parallelism above 1 the sample range is split into chunks that are
+ * assigned on a fork-join pool, each chunk keeping its own partial sums and
+ * counts. The partials are merged in chunk order, so the result does not
+ * depend on thread timing.
+ * <p>
+ * {@link #fitAccelerated} runs Hamerly's variant, which keeps an upper bound
+ * on each sample's distance to its own centroid and a lower bound on its
+ * distance to any other. Once the centroids settle most samples are
+ * skipped without computing a single distance, and the result is the same
+ * as {@link #fit}.
+ * <p>
+ * Distances to the centroids are worked out by a {@link DistanceKernel},
+ * a whole chunk at a time for Lloyd's assignment.
+ * <p>
+ * A fit can be given a deadline, and stops at the first iteration to end
+ * after it. The centroids and labels reached so far still make a palette,
+ * just a less settled one.
+ */
+class KMeans
+{
+	/** below this many samples per chunk it's not worth forking */
+	private static final int MIN_CHUNK_SIZE = 4096;
+
+	/** bounds this close to deciding are recomputed, to absorb float error */
+	private static final float BOUND_SLACK = 1e-3F;
+
+	/** fit until done, however long it takes */
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	// the samples, one entry per channel plane, and their weights (may be null)
+	private final float[] r, g, b;
+	private final int[] weights;
+	private final int n;
+
+	// centroids, only the first k entries are live
+	private final float[] cr, cg, cb;
+	private int k;
+
+	// per centroid running sums (interleaved r, g, b) and member weights
+	private final double[] sums;
+	private final int[] counts;
+
+	private final int[] labels;
+	private final int[] remap;
+
+	// each sample's nearest centroid this iteration, before comparing
+	private final int[] nearest;
+	private final float[] distances = new float[2];
+	private final DistanceKernel kernel = DistanceKernel.get();
+
+	private final Random random;
+
+	// true once centroids have been given to start from, so not seeded
+	private boolean startGiven;
+
+	// the System.nanoTime() fits stop at, and whether the last one did
+	private long deadline = NO_DEADLINE;
+	private boolean timedOut;
+
+	// whether the last fit stopped because nothing moved any more
+	private boolean converged;
+
+	// Hamerly bounds, null unless running accelerated
+	private boolean accelerated;
+	private float[] upper, lower;
+	private final float[] halfSeparation, shift;
+	private float maxShift, secondMaxShift;
+	private int maxShiftIndex;
+
+	// parallel assignment, null when running serially
+	private final int parallelism;
+	private final Chunk[] chunks;
+	private final RecursiveAction allChunks;
+
+	/*-------------------------------------------------------------------------*/
+	KMeans(float[] r, float[] g, float[] b, int n, int k)
+	{
+		this(r, g, b, null, n, k, 1, new Random());
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param weights
+	 * 	the weight of each sample, or null to weight them all 1
+	 * @param random
+	 * 	the source of randomness for seeding the centroids
+	 */
+	KMeans(float[] r, float[] g, float[] b, int[] weights, int n, int k,
+		int parallelism, Random random)
+	{
+		this.random = random;
+		this.r = r;
+		this.g = g;
+		this.b = b;
+		this.weights = weights;
+		this.n = n;
+		this.k = k;
+
+		this.cr = new float[k];
+		this.cg = new float[k];
+		this.cb = new float[k];
+		this.sums = new double[k * 3];
+		this.counts = new int[k];
+		this.labels = new int[n];
+		this.remap = new int[k];
+		this.nearest = new int[n];
+		this.halfSeparation = new float[k];
+		this.shift = new float[k];
+
+		int nrChunks = Math.min(parallelism * 4, n / MIN_CHUNK_SIZE);
+		if (parallelism > 1 && nrChunks > 1)
+		{
+			this.parallelism = parallelism;
+			this.chunks = new Chunk[nrChunks];
+			for (int c = 0; c < nrChunks; c++)
+			{
+				chunks[c] = new Chunk(
+					(int)((long)n * c / nrChunks),
+					(int)((long)n * (c + 1) / nrChunks),
+					k);
+			}
+			this.allChunks = new RecursiveAction()
+			{
+				@Override
+				protected void compute()
+				{
+					invokeAll(chunks);
+				}
+			};
+		}
+		else
+		{
+			this.parallelism = 1;
+			this.chunks = null;
+			this.allChunks = null;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Runs until the assignments stop changing, no centroid moves further
+	 * than epsilon, or maxIterations is reached. Centroids that end up with
+	 * no members are dropped, so {@link #getK()} may be less than the k
+	 * requested.
+	 *
+	 * @return the number of iterations run
+	 */
+	int fit(int maxIterations, float epsilon)
+	{
+		accelerated = false;
+		return run(maxIterations, epsilon);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * As {@link #fit}, but skips distance computations using Hamerly's
+	 * bounds. Worthwhile for large k.
+	 */
+	int fitAccelerated(int maxIterations, float epsilon)
+	{
+		accelerated = true;
+		if (upper == null)
+		{
+			upper = new float[n];
+			lower = new float[n];
+		}
+		return run(maxIterations, epsilon);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int run(int maxIterations, float epsilon)
+	{
+		ForkJoinPool pool = chunks == null ? null : new ForkJoinPool(parallelism);
+		try
+		{
+			return iterate(maxIterations, epsilon, pool);
+		}
+		finally
+		{
+			if (pool != null)
+			{
+				pool.shutdown();
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int iterate(int maxIterations, float epsilon, ForkJoinPool pool)
+	{
+		if (!startGiven)
+		{
+			seedCentroids();
+		}
+		Arrays.fill(labels, -1);
+		Arrays.fill(shift, 0F);
+		maxShift = secondMaxShift = 0F;
+		maxShiftIndex = -1;
+
+		float epsilonSquared = epsilon * epsilon;
+		boolean settled = false;
+		timedOut = false;
+		converged = false;
+
+		int iteration = 0;
+		while (iteration < maxIterations)
+		{
+			iteration++;
+
+			if (accelerated)
+			{
+				computeHalfSeparations();
+			}
+
+			// in each iteration we find the nearest centroid for each sample
+			int changed;
+			if (pool != null)
+			{
+				changed = assignParallel(pool);
+			}
+			else if (accelerated)
+			{
+				changed = assignHamerly(0, n, sums, counts, distances);
+			}
+			else
+			{
+				changed = assign(0, n, sums, counts);
+			}
+
+			// if the assignments or the centroids do not change, then the
+			// algorithm terminates. Out of time, it stops here too, while the
+			// labels still match the centroids
+			converged = changed == 0 || settled;
+			if (converged || iteration == maxIterations || pastDeadline())
+			{
+				dropEmptyCentroids();
+				break;
+			}
+
+			// at the end of each iteration we relocate the centroids
+			int live = k;
+			settled = relocateCentroids() <= epsilonSquared;
+			if (k < live)
+			{
+				// indices have shifted, so the next pass can't be compared
+				Arrays.fill(labels, -1);
+			}
+		}
+
+		return iteration;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Starts the next fits from the given centroids rather than seeding
+	 * with k-means++, for refining a palette found some other way.
+	 *
+	 * @param count
+	 * 	the number of centroids given, no more than the k this was made
+	 * 	with
+	 */
+	void startFrom(float[] r, float[] g, float[] b, int count)
+	{
+		System.arraycopy(r, 0, cr, 0, count);
+		System.arraycopy(g, 0, cg, 0, count);
+		System.arraycopy(b, 0, cb, 0, count);
+		k = count;
+		startGiven = true;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Stops the next fits at the first iteration to end after the given
+	 * System.nanoTime(), or never for {@link #NO_DEADLINE}.
+	 */
+	void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return true if the last fit stopped because no label changed or the
+	 * 	centroids moved less than epsilon, rather than running out of
+	 * 	iterations or time
+	 */
+	boolean isConverged()
+	{
+		return converged;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private boolean pastDeadline()
+	{
+		if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0)
+		{
+			timedOut = true;
+		}
+		return timedOut;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	int getK()
+	{
+		return k;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	int[] getLabels()
+	{
+		return labels;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Copies the live centroids into the first {@link #getK()} entries of the
+	 * given channel planes.
+	 */
+	void copyCentroids(float[] r, float[] g, float[] b)
+	{
+		System.arraycopy(cr, 0, r, 0, k);
+		System.arraycopy(cg, 0, g, 0, k);
+		System.arraycopy(cb, 0, b, 0, k);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the live centroids as 0xRRGGBB colours
+	 */
+	int[] getColours()
+	{
+		int[] result = new int[k];
+		for (int j = 0; j < k; j++)
+		{
+			result[j] = (((int)cr[j] << 16) | ((int)cg[j] << 8) | (int)cb[j]) & 0xFFFFFF;
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the live centroids as 0xRRGGBB colours, converted from CIE Lab
+	 * 	if that's what the samples are
+	 */
+	int[] getColours(boolean lab)
+	{
+		return lab ? CieLab.toRgb(cr, cg, cb, k) : getColours();
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Greedy k-means++: each new centroid is the best of a few samples drawn
+	 * in proportion to their weighted squared distance from the centroids
+	 * chosen so far. Stops early if every sample is already a centroid.
+	 */
+	private void seedCentroids()
+	{
+		if (n == 0)
+		{
+			k = 0;
+			return;
+		}
+
+		int trials = 2 + (int)Math.log(k);
+
+		// weighted squared distance from each sample to its closest centroid
+		float[] closest = new float[n];
+
+		int first = sample(null, totalWeight());
+		setCentroid(0, first);
+		double potential = 0;
+		for (int i = 0; i < n; i++)
+		{
+			closest[i] = distance(i, 0);
+			potential += weight(i) * closest[i];
+		}
+
+		int chosen = 1;
+		while (chosen < k && potential > 0)
+		{
+			int best = -1;
+			double bestPotential = Double.MAX_VALUE;
+
+			for (int t = 0; t < trials; t++)
+			{
+				int c = sample(closest, potential);
+				setCentroid(chosen, c);
+
+				double trialPotential = 0;
+				for (int i = 0; i < n; i++)
+				{
+					trialPotential += weight(i) * Math.min(closest[i], distance(i, chosen));
+				}
+
+				if (trialPotential < bestPotential)
+				{
+					bestPotential = trialPotential;
+					best = c;
+				}
+			}
+
+			setCentroid(chosen, best);
+			potential = 0;
+			for (int i = 0; i < n; i++)
+			{
+				closest[i] = Math.min(closest[i], distance(i, chosen));
+				potential += weight(i) * closest[i];
+			}
+			chosen++;
+		}
+
+		k = chosen;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Draws a sample index with probability proportional to its weight times
+	 * its distance, or just its weight if distances is null.
+	 */
+	private int sample(float[] distances, double total)
+	{
+		double target = random.nextDouble() * total;
+		double cumulative = 0;
+		int last = 0;
+
+		for (int i = 0; i < n; i++)
+		{
+			double p = distances == null ? weight(i) : weight(i) * (double)distances[i];
+			if (p <= 0)
+			{
+				continue;
+			}
+
+			cumulative += p;
+			last = i;
+			if (cumulative > target)
+			{
+				return i;
+			}
+		}
+
+		return last;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private double totalWeight()
+	{
+		double result = 0;
+		for (int i = 0; i < n; i++)
+		{
+			result += weight(i);
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int weight(int i)
+	{
+		return weights == null ? 1 : weights[i];
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void setCentroid(int j, int sample)
+	{
+		cr[j] = r[sample];
+		cg[j] = g[sample];
+		cb[j] = b[sample];
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private float distance(int i, int j)
+	{
+		float dr = r[i] - cr[j];
+		float dg = g[i] - cg[j];
+		float db = b[i] - cb[j];
+		return dr * dr + dg * dg + db * db;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Labels samples [from, to) with their nearest centroid, accumulating
+	 * the members of each centroid into the given sums and counts.
+	 *
+	 * @return the number of samples whose label changed
+	 */
+	private int assign(int from, int to, double[] sums, int[] counts)
+	{
+		Arrays.fill(sums, 0, k * 3, 0D);
+		Arrays.fill(counts, 0, k, 0);
+
+		kernel.nearest(r, g, b, from, to, cr, cg, cb, k, nearest);
+
+		int changed = 0;
+		for (int i = from; i < to; i++)
+		{
+			int j = nearest[i];
+
+			if (labels[i] != j)
+			{
+				labels[i] = j;
+				changed++;
+			}
+
+			int w = weight(i);
+			sums[j * 3] += (double)w * r[i];
+			sums[j * 3 + 1] += (double)w * g[i];
+			sums[j * 3 + 2] += (double)w * b[i];
+			counts[j] += w;
+		}
+
+		return changed;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Hamerly's assignment step over samples [from, to). A sample is only
+	 * rescanned when its upper bound can no longer rule out every other
+	 * centroid, either through its lower bound or through half the distance
+	 * from its centroid to the next nearest one.
+	 *
+	 * @param distances
+	 * 	scratch space for the kernel, two entries
+	 * @return the number of samples whose label changed
+	 */
+	private int assignHamerly(int from, int to, double[] sums, int[] counts, float[] distances)
+	{
+		Arrays.fill(sums, 0, k * 3, 0D);
+		Arrays.fill(counts, 0, k, 0);
+
+		int changed = 0;
+		for (int i = from; i < to; i++)
+		{
+			float sr = r[i], sg = g[i], sb = b[i];
+			int a = labels[i];
+
+			boolean rescan = a < 0;
+			if (!rescan)
+			{
+				// move the bounds with the centroids
+				upper[i] += shift[a];
+				lower[i] -= a == maxShiftIndex ? secondMaxShift : maxShift;
+
+				float bound = Math.max(halfSeparation[a], lower[i]);
+				if (upper[i] + BOUND_SLACK > bound)
+				{
+					// tighten the upper bound and try again
+					upper[i] = (float)Math.sqrt(distance(i, a));
+					rescan = upper[i] + BOUND_SLACK > bound;
+				}
+			}
+
+			if (rescan)
+			{
+				int nearest = kernel.nearestTwo(sr, sg, sb, cr, cg, cb, k, distances);
+
+				upper[i] = (float)Math.sqrt(distances[0]);
+				lower[i] = (float)Math.sqrt(distances[1]);
+
+				if (a != nearest)
+				{
+					labels[i] = nearest;
+					a = nearest;
+					changed++;
+				}
+			}
+
+			int w = weight(i);
+			sums[a * 3] += (double)w * sr;
+			sums[a * 3 + 1] += (double)w * sg;
+			sums[a * 3 + 2] += (double)w * sb;
+			counts[a] += w;
+		}
+
+		return changed;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * For each centroid, half the distance to its nearest other centroid.
+	 * No sample closer than that to its centroid can belong to another.
+	 */
+	private void computeHalfSeparations()
+	{
+		Arrays.fill(halfSeparation, 0, k, Float.MAX_VALUE);
+		for (int j = 0; j < k; j++)
+		{
+			for (int j2 = j + 1; j2 < k; j2++)
+			{
+				float dr = cr[j] - cr[j2];
+				float dg = cg[j] - cg[j2];
+				float db = cb[j] - cb[j2];
+				float half = (float)Math.sqrt(dr * dr + dg * dg + db * db) / 2;
+
+				halfSeparation[j] = Math.min(halfSeparation[j], half);
+				halfSeparation[j2] = Math.min(halfSeparation[j2], half);
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Runs {@link #assign} over every chunk on the pool, then merges the
+	 * partial sums and counts into the centroid accumulators.
+	 */
+	private int assignParallel(ForkJoinPool pool)
+	{
+		for (Chunk chunk : chunks)
+		{
+			chunk.reinitialize();
+		}
+		allChunks.reinitialize();
+		pool.invoke(allChunks);
+
+		Arrays.fill(sums, 0, k * 3, 0D);
+		Arrays.fill(counts, 0, k, 0);
+
+		int changed = 0;
+		for (Chunk chunk : chunks)
+		{
+			changed += chunk.changed;
+			for (int j = 0; j < k; j++)
+			{
+				sums[j * 3] += chunk.sums[j * 3];
+				sums[j * 3 + 1] += chunk.sums[j * 3 + 1];
+				sums[j * 3 + 2] += chunk.sums[j * 3 + 2];
+				counts[j] += chunk.counts[j];
+			}
+		}
+
+		return changed;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Moves each centroid to the mean of its members, dropping empty ones.
+	 *
+	 * @return the largest squared distance any surviving centroid moved
+	 */
+	private float relocateCentroids()
+	{
+		float maxSquaredShift = 0;
+		maxShift = secondMaxShift = 0F;
+		maxShiftIndex = -1;
+		int live = 0;
+		for (int j = 0; j < k; j++)
+		{
+			int count = counts[j];
+			if (count == 0)
+			{
+				continue;
+			}
+
+			float nr = (float)(sums[j * 3] / count);
+			float ng = (float)(sums[j * 3 + 1] / count);
+			float nb = (float)(sums[j * 3 + 2] / count);
+			float dr = nr - cr[j], dg = ng - cg[j], db = nb - cb[j];
+			float squaredShift = dr * dr + dg * dg + db * db;
+			maxSquaredShift = Math.max(maxSquaredShift, squaredShift);
+
+			// distance moved, tracking the two largest for the lower bounds
+			shift[live] = (float)Math.sqrt(squaredShift);
+			if (shift[live] > maxShift)
+			{
+				secondMaxShift = maxShift;
+				maxShift = shift[live];
+				maxShiftIndex = live;
+			}
+			else if (shift[live] > secondMaxShift)
+			{
+				secondMaxShift = shift[live];
+			}
+
+			cr[live] = nr;
+			cg[live] = ng;
+			cb[live] = nb;
+			live++;
+		}
+
+		k = live;
+		return maxSquaredShift;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Drops centroids with no members after the final assignment, leaving
+	 * the survivors where they are and relabelling the samples to match.
+	 */
+	private void dropEmptyCentroids()
+	{
+		int live = 0;
+		for (int j = 0; j < k; j++)
+		{
+			if (counts[j] == 0)
+			{
+				continue;
+			}
+
+			remap[j] = live;
+			cr[live] = cr[j];
+			cg[live] = cg[j];
+			cb[live] = cb[j];
+			counts[live] = counts[j];
+			live++;
+		}
+
+		if (live < k)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				labels[i] = remap[labels[i]];
+			}
+			k = live;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A fixed slice of the samples with its own partial accumulators.
+	 */
+	private class Chunk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+		private final double[] sums;
+		private final int[] counts;
+		private final float[] distances = new float[2];
+		private int changed;
+
+		Chunk(int from, int to, int k)
+		{
+			this.from = from;
+			this.to = to;
+			this.sums = new double[k * 3];
+			this.counts = new int[k];
+		}
+
+		@Override
+		protected void compute()
+		{
+			changed = accelerated ?
+				assignHamerly(from, to, sums, counts, distances) :
+				assign(from, to, sums, counts);
+		}
+	}
+}
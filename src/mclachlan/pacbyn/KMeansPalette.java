@@ -1,334 +1,135 @@
 package mclachlan.pacbyn;
 
-import java.util.*;
-
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
-
+import java.util.Random;
 
 /**
  * Source: https://www.baeldung.com/java-k-means-clustering-algorithm
+ * <p>
+ * Clustering runs over the histogram of distinct colours rather than over
+ * every pixel, so the cost of an iteration scales with colour diversity and
+ * not with image area. With -lab the colours are clustered in CIE Lab, each
+ * converted once.
  */
 public class KMeansPalette
 {
-	public static int[] palletize(int palletColours, int[] inputPixels)
-	{
-		List<Record> pixels = new ArrayList<>();
-
-		for (int i = 0; i < inputPixels.length; i++)
-		{
-			int val = inputPixels[i];
-
-			double r = ((val >> 16) & 0xFF);
-			double g = ((val >> 8) & 0xFF);
-			double b = ((val >> 0) & 0xFF);
-
-			Map<String, Double> features = new HashMap<>();
-			features.put("r", r);
-			features.put("g", g);
-			features.put("b", b);
-
-			pixels.add(new Record("("+r+","+g+","+b+")", features));
-		}
-
-		Map<Centroid, List<Record>> clusters = KMeans.fit(pixels, palletColours, new EuclideanDistance(), 1000);
-
-		/*clusters.forEach((key, value) -> {
-			System.out.println("-------------------------- CLUSTER ----------------------------");
-
-			// Sorting the coordinates to see the most significant tags first.
-			System.out.println(key));
-			String members = String.join(", ", value.stream().map(Record::getDescription).collect(toSet()));
-			System.out.print(members);
-
-			System.out.println();
-			System.out.println();
-		});*/
-
-		int[] result = new int[palletColours];
-
-		int n=0;
-		for (Centroid key : clusters.keySet())
-		{
-			int r = key.getCoordinates().get("r").intValue();
-			int g = key.getCoordinates().get("g").intValue();
-			int b = key.getCoordinates().get("b").intValue();
-
-			int col = ((r << 16) | (g << 8) | b) & 0xFFFFFF;
-
-			result[n++] = col;
-		};
-
-		return result;
-	}
-}
-
-class KMeans
-{
-	private static final Random random = new Random();
+	/**
+	 * stop once no centroid moves further than this, in 0-255 channel units,
+	 * or Lab units, which are about as fine
+	 */
+	private static final float EPSILON = 0.1F;
 
-	public static Map<Centroid, List<Record>> fit(List<Record> records,
-		int k,
-		Distance distance,
-		int maxIterations)
-	{
-		List<Centroid> centroids = randomCentroids(records, k);
-		Map<Centroid, List<Record>> clusters = new HashMap<>();
-		Map<Centroid, List<Record>> lastState = new HashMap<>();
-
-		// iterate for a pre-defined number of times
-		for (int i = 0; i < maxIterations; i++)
-		{
-			boolean isLastIteration = i == maxIterations - 1;
-
-			// in each iteration we should find the nearest centroid for each record
-			for (Record record : records)
-			{
-				Centroid centroid = nearestCentroid(record, centroids, distance);
-				assignToCluster(clusters, record, centroid);
-			}
+	/** give up on converging after this many iterations */
+	private static final int MAX_ITERATIONS = 1000;
 
-			// if the assignments do not change, then the algorithm terminates
-			boolean shouldTerminate = isLastIteration || clusters.equals(lastState);
-			lastState = clusters;
-			if (shouldTerminate)
-			{
-				break;
-			}
-
-			// at the end of each iteration we should relocate the centroids
-			centroids = relocateCentroids(clusters);
-			clusters = new HashMap<>();
-		}
-
-		return lastState;
-	}
-
-	private static List<Centroid> randomCentroids(List<Record> records, int k)
+	public static int[] palletize(int palletColours, int[] inputPixels)
 	{
-		List<Centroid> centroids = new ArrayList<>();
-		Map<String, Double> maxs = new HashMap<>();
-		Map<String, Double> mins = new HashMap<>();
-
-		for (Record record : records)
+		return palletize(palletColours, inputPixels, 1, false, new Random());
+	}
+
+	/**
+	 * Builds the palette and replaces each input pixel with the colour of its
+	 * cluster.
+	 *
+	 * @param parallelism
+	 * 	the number of threads to assign colours with
+	 * @param accelerated
+	 * 	true to skip distance computations with Hamerly's bounds, which
+	 * 	gives the same palette faster for large palettes
+	 * @param random
+	 * 	the source of randomness for seeding the clusters
+	 */
+	public static int[] palletize(int palletColours, int[] inputPixels,
+		int parallelism, boolean accelerated, Random random)
+	{
+		return palletize(palletColours, inputPixels, parallelism, accelerated, false, random, KMeans.NO_DEADLINE);
+	}
+
+	/**
+	 * As {@link #palletize(int, int[], int, boolean, Random)}, optionally in
+	 * CIE Lab, stopping the fit early if it runs past a deadline.
+	 *
+	 * @param lab
+	 * 	true to cluster in CIE Lab rather than sRGB
+	 * @param deadline
+	 * 	the System.nanoTime() to stop iterating at, or KMeans.NO_DEADLINE
+	 */
+	@SuppressWarnings("try")
+	public static int[] palletize(int palletColours, int[] inputPixels,
+		int parallelism, boolean accelerated, boolean lab, Random random, long deadline)
+	{
+		ColourHistogram histogram;
+		int n;
+		float[] r, g, b;
+		try (PipelineStats.Timer timer = PipelineStats.stage("histogram"))
 		{
-			record.getFeatures().forEach((key, value) -> {
-				// compares the value with the current max and choose the bigger value between them
-				maxs.compute(key, (k1, max) -> max == null || value > max ? value : max);
+			histogram = ColourHistogram.of(inputPixels);
 
-				// compare the value with the current min and choose the smaller value between them
-				mins.compute(key, (k1, min) -> min == null || value < min ? value : min);
-			});
+			n = histogram.size();
+			r = new float[n];
+			g = new float[n];
+			b = new float[n];
+			histogram.channels(r, g, b, lab);
 		}
 
-		Set<String> attributes = records.stream()
-			.flatMap(e -> e.getFeatures().keySet().stream())
-			.collect(toSet());
-		for (int i = 0; i < k; i++)
+		KMeans kMeans;
+		try (PipelineStats.Timer timer = PipelineStats.stage("kmeans"))
 		{
-			Map<String, Double> coordinates = new HashMap<>();
-			for (String attribute : attributes)
+			kMeans = new KMeans(
+				r, g, b, histogram.getCounts(), n, palletColours, parallelism, random);
+			kMeans.setDeadline(deadline);
+			int iterations;
+			if (accelerated)
 			{
-				double max = maxs.get(attribute);
-				double min = mins.get(attribute);
-				coordinates.put(attribute, random.nextDouble() * (max - min) + min);
+				iterations = kMeans.fitAccelerated(MAX_ITERATIONS, EPSILON);
 			}
-
-			centroids.add(new Centroid(coordinates));
-		}
-
-		return centroids;
-	}
-
-	private static Centroid nearestCentroid(Record record,
-		List<Centroid> centroids, Distance distance)
-	{
-		double minimumDistance = Double.MAX_VALUE;
-		Centroid nearest = null;
-
-		for (Centroid centroid : centroids)
-		{
-			double currentDistance = distance.calculate(record.getFeatures(), centroid.getCoordinates());
-
-			if (currentDistance < minimumDistance)
+			else
 			{
-				minimumDistance = currentDistance;
-				nearest = centroid;
+				iterations = kMeans.fit(MAX_ITERATIONS, EPSILON);
 			}
+			PipelineStats.kMeans(n, kMeans.getK(), iterations, kMeans.isConverged());
 		}
 
-		return nearest;
-	}
-
-	private static void assignToCluster(Map<Centroid, List<Record>> clusters,
-		Record record,
-		Centroid centroid)
-	{
-		clusters.compute(centroid, (key, list) -> {
-			if (list == null)
+		try (PipelineStats.Timer timer = PipelineStats.stage("assign"))
+		{
+			// with fewer distinct colours than clusters the tail is left black
+			int[] result = new int[palletColours];
+			int[] centroids = kMeans.getColours(lab);
+			System.arraycopy(centroids, 0, result, 0, centroids.length);
+
+			// map the colour labels back onto the pixel grid
+			int[] labels = kMeans.getLabels();
+			int[] pixelIndex = histogram.getPixelIndex();
+			for (int i = 0; i < inputPixels.length; i++)
 			{
-				list = new ArrayList<>();
+				inputPixels[i] = result[labels[pixelIndex[i]]];
 			}
 
-			list.add(record);
-			return list;
-		});
-	}
-
-	private static Centroid average(Centroid centroid, List<Record> records)
-	{
-		if (records == null || records.isEmpty())
-		{
-			return centroid;
-		}
-
-		Map<String, Double> average = centroid.getCoordinates();
-		records.stream().flatMap(e -> e.getFeatures().keySet().stream())
-			.forEach(k -> average.put(k, 0.0));
-
-		for (Record record : records)
-		{
-			record.getFeatures().forEach(
-				(k, v) -> average.compute(k, (k1, currentValue) -> v + currentValue)
-			);
-		}
-
-		average.forEach((k, v) -> average.put(k, v / records.size()));
-
-		return new Centroid(average);
-	}
-
-	private static List<Centroid> relocateCentroids(
-		Map<Centroid, List<Record>> clusters)
-	{
-		return clusters.entrySet().stream().map(e -> average(e.getKey(), e.getValue())).collect(toList());
-	}
-}
-
-/*-------------------------------------------------------------------------*/
-class Record
-{
-	private final String description;
-	private final Map<String, Double> features;
-
-	public Record(String description,
-		Map<String, Double> features)
-	{
-		this.description = description;
-		this.features = features;
-	}
-
-	public String getDescription()
-	{
-		return description;
-	}
-
-	public Map<String, Double> getFeatures()
-	{
-		return features;
-	}
-
-	@Override
-	public boolean equals(Object o)
-	{
-		if (this == o)
-		{
-			return true;
-		}
-		if (!(o instanceof Record))
-		{
-			return false;
-		}
-
-		Record record = (Record)o;
-
-		if (!description.equals(record.description))
-		{
-			return false;
+			return result;
 		}
-		return features.equals(record.features);
-	}
-
-	@Override
-	public int hashCode()
-	{
-		int result = description.hashCode();
-		result = 31 * result + features.hashCode();
-		return result;
 	}
-}
-
-class Centroid
-{
-
-	private final Map<String, Double> coordinates;
 
-	public Map<String, Double> getCoordinates()
-	{
-		return coordinates;
-	}
-
-	public Centroid(
-		Map<String, Double> coordinates)
-	{
-		this.coordinates = coordinates;
-	}
-
-	@Override
-	public boolean equals(Object o)
-	{
-		if (this == o)
-		{
-			return true;
-		}
-		if (!(o instanceof Centroid))
+	/**
+	 * Builds the palette with mini-batch k-means, for grids too large to
+	 * cluster in full, and replaces each input pixel with the colour of its
+	 * cluster.
+	 *
+	 * @param batchSize
+	 * 	the number of pixels sampled per iteration
+	 * @param iterations
+	 * 	the number of batches to fit
+	 * @param lab
+	 * 	true to cluster in CIE Lab rather than sRGB
+	 */
+	@SuppressWarnings("try")
+	public static int[] palletizeMiniBatch(int palletColours, int[] inputPixels,
+		int batchSize, int iterations, boolean lab, Random random)
+	{
+		try (PipelineStats.Timer timer = PipelineStats.stage("minibatch"))
 		{
-			return false;
-		}
-
-		Centroid centroid = (Centroid)o;
-
-		return getCoordinates().equals(centroid.getCoordinates());
-	}
-
-	@Override
-	public int hashCode()
-	{
-		return getCoordinates().hashCode();
-	}
+			MiniBatchKMeans kMeans = new MiniBatchKMeans(
+				palletColours, Math.max(batchSize, palletColours), lab, random);
 
-	@Override
-	public String toString()
-	{
-		return "Centroid{" +
-			"coordinates=" + coordinates +
-			'}';
-	}
-}
-
-interface Distance
-{
-	double calculate(Map<String, Double> f1, Map<String, Double> f2);
-}
-
-class EuclideanDistance implements Distance
-{
-
-	@Override
-	public double calculate(Map<String, Double> f1, Map<String, Double> f2)
-	{
-		double sum = 0;
-		for (String key : f1.keySet())
-		{
-			Double v1 = f1.get(key);
-			Double v2 = f2.get(key);
-
-			if (v1 != null && v2 != null)
-			{
-				sum += Math.pow(v1 - v2, 2);
-			}
+			return kMeans.palletize(inputPixels, iterations);
 		}
-
-		return Math.sqrt(sum);
 	}
 }
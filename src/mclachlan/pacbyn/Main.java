@@ -18,13 +18,10 @@ along with this program.  If not, see https://www.gnu.org/licenses/.
 
 package mclachlan.pacbyn;
 
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import javax.imageio.ImageIO;
 
@@ -32,23 +29,41 @@ public class Main
 {
 	enum ColouringKey
 	{
-		INT_SEQ, INT_RAND, ALPHA_SEQ, ALPHA_RAND
+		INT_SEQ(Integer.MAX_VALUE), INT_RAND(99), ALPHA_SEQ(127), ALPHA_RAND(26);
+
+		/** the most palette colours the method has distinct labels for */
+		final int labels;
+
+		ColouringKey(int labels)
+		{
+			this.labels = labels;
+		}
+	}
+
+	enum PaletteMethod
+	{
+		KMEANS, SIMPLE, GIMP, FLOYD_STEINBERG, OCTREE, WU, AUTO
 	}
 
+	@SuppressWarnings("try")
 	public static void main(String[] args) throws Exception
 	{
-		int palletColours = 20;
-		int pixelsInRow = 40;
+		Settings settings = new Settings();
 		String imageName = null;
 		String outputName = "output.png";
-		boolean debug = false;
-		ColouringKey colouringKeyMethod = ColouringKey.INT_SEQ;
+		String statsName = null;
+		String batchSource = null;
+		String outputDir = ".";
+		boolean serve = false;
+		int port = 8080;
+		int maxJobs = Runtime.getRuntime().availableProcessors();
+		int maxUpload = 32;
 
 		for (int i = 0; i < args.length; i++)
 		{
 			if (args[i].equalsIgnoreCase("-d"))
 			{
-				debug = true;
+				settings.debug = true;
 			}
 			else if (args[i].equalsIgnoreCase("-i"))
 			{
@@ -58,17 +73,93 @@ public class Main
 			{
 				outputName = args[++i];
 			}
+			else if (args[i].equalsIgnoreCase("-stats"))
+			{
+				statsName = args[++i];
+			}
+			else if (args[i].equalsIgnoreCase("-batch"))
+			{
+				batchSource = args[++i];
+			}
+			else if (args[i].equalsIgnoreCase("-outdir"))
+			{
+				outputDir = args[++i];
+			}
+			else if (args[i].equalsIgnoreCase("--serve"))
+			{
+				serve = true;
+			}
+			else if (args[i].equalsIgnoreCase("-port"))
+			{
+				port = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-maxjobs"))
+			{
+				maxJobs = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-maxupload"))
+			{
+				maxUpload = Integer.parseInt(args[++i]);
+			}
 			else if (args[i].equalsIgnoreCase("-n"))
 			{
-				palletColours = Integer.parseInt(args[++i]);
+				settings.palletColours = Integer.parseInt(args[++i]);
 			}
 			else if (args[i].equalsIgnoreCase("-w"))
 			{
-				pixelsInRow = Integer.parseInt(args[++i]);
+				settings.pixelsInRow = Integer.parseInt(args[++i]);
 			}
 			else if (args[i].equalsIgnoreCase("-k"))
 			{
-				colouringKeyMethod = ColouringKey.valueOf(args[++i]);
+				settings.colouringKeyMethod = ColouringKey.valueOf(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-m"))
+			{
+				settings.paletteMethod = PaletteMethod.valueOf(args[++i].toUpperCase(Locale.ROOT));
+			}
+			else if (args[i].equalsIgnoreCase("-t"))
+			{
+				settings.parallelism = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-seed"))
+			{
+				settings.seed = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-accel"))
+			{
+				settings.accelerated = true;
+			}
+			else if (args[i].equalsIgnoreCase("-cache"))
+			{
+				settings.cacheDir = new File(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-cachesize"))
+			{
+				settings.cacheSize = Long.parseLong(args[++i]) * 1024 * 1024;
+			}
+			else if (args[i].equalsIgnoreCase("-indexed"))
+			{
+				settings.indexed = true;
+			}
+			else if (args[i].equalsIgnoreCase("-mb"))
+			{
+				settings.miniBatchSize = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-mbi"))
+			{
+				settings.miniBatchIterations = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-refine"))
+			{
+				settings.refinement = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-budget"))
+			{
+				settings.budget = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equalsIgnoreCase("-lab"))
+			{
+				settings.lab = true;
 			}
 			else if (args[i].equalsIgnoreCase("-?"))
 			{
@@ -82,6 +173,32 @@ public class Main
 			}
 		}
 
+		if (settings.palletColours > settings.colouringKeyMethod.labels)
+		{
+			throw new IllegalArgumentException(
+				"-k "+settings.colouringKeyMethod+" has labels for at most "+settings.colouringKeyMethod.labels+" colours");
+		}
+		if (settings.budget < 0)
+		{
+			throw new IllegalArgumentException("-budget must not be negative");
+		}
+
+		if (serve)
+		{
+			if (maxUpload < 1 || maxUpload > 1024)
+			{
+				throw new IllegalArgumentException("-maxupload must be from 1 to 1024 MB");
+			}
+			new WorksheetServer(settings, maxJobs, maxUpload * 1024 * 1024).start(port);
+			return;
+		}
+
+		if (batchSource != null)
+		{
+			int failures = new BatchRunner(settings, new File(outputDir)).run(new File(batchSource));
+			System.exit(failures == 0 ? 0 : 2);
+		}
+
 		if (imageName == null)
 		{
 			System.out.println("Argument -i [input image file] is is required");
@@ -95,114 +212,202 @@ public class Main
 			System.exit(1);
 		}
 
-		BufferedImage image = ImageIO.read(new File(imageName));
-		int imageHeight = image.getHeight();
-		int imageWidth = image.getWidth();
+		PipelineStats stats = statsName == null ? null : PipelineStats.begin();
 
-		// validate square image
-		if (imageHeight != imageWidth)
-		{
-			throw new Exception("requires a square image");
-		}
+		WorksheetCache.Palettised palettised = prepare(settings, new File(imageName), settings.newCache());
 
-		// lose resolution by resizing
-		Image resizedImage;
-		if (pixelsInRow < imageWidth)
+		BufferedImage displayImage;
+		try (PipelineStats.Timer timer = PipelineStats.stage("render"))
 		{
-			resizedImage = image.getScaledInstance(pixelsInRow, pixelsInRow, Image.SCALE_SMOOTH);
+			displayImage = renderPage(settings, palettised.pixels, palettised.palette, palettised.newRandom());
 		}
-		else
+		try (PipelineStats.Timer timer = PipelineStats.stage("encode"))
 		{
-			resizedImage = image;
+			ImageIO.write(displayImage, "png", new File(outputName));
 		}
 
-		int[] inputPixels = grabPixels(resizedImage, pixelsInRow, pixelsInRow);
-
-		int[] palette = new int[palletColours];
+		if (stats != null)
+		{
+			PipelineStats.end();
+			stats.write(new File(statsName));
+		}
+	}
 
-//		palette = palletizeFloydSteinberg(palletColours, pixelsInRow, inputPixels);
-//		palette = palletizeGimp(palletColours, pixelsInRow, inputPixels);
-//		palette = palletizeSimple(palletColours, inputPixels);
-		palette = palletizeKMeans(palletColours, inputPixels);
+	/*-------------------------------------------------------------------------*/
 
-		Map<Integer, String> paletteKey = generateColouringKey(palette, colouringKeyMethod);
+	/**
+	 * Decodes, downsizes and palletizes an image, skipping whatever steps
+	 * the cache already has the results of.
+	 *
+	 * @param input
+	 * 	the image, as a File or the bytes of one
+	 * @param cache
+	 * 	the cache, or null for none
+	 */
+	@SuppressWarnings("try")
+	static WorksheetCache.Palettised prepare(
+		Settings settings,
+		Object input,
+		WorksheetCache cache) throws Exception
+	{
+		String hash = null;
+		int[] inputPixels = null;
+		if (cache != null)
+		{
+			try (PipelineStats.Timer timer = PipelineStats.stage("cache"))
+			{
+				hash = input instanceof File ? WorksheetCache.hash((File)input) : WorksheetCache.hash((byte[])input);
 
-		// A4 size
-		int outputWidth = 2480;
-		int outputHeight = 3508;
-		BufferedImage displayImage = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_INT_RGB);
+				WorksheetCache.Palettised cached = cache.getPalette(hash, settings);
+				if (cached != null)
+				{
+					return cached;
+				}
+				inputPixels = cache.getGrid(hash, settings.pixelsInRow);
+			}
+		}
 
-		Graphics g = displayImage.getGraphics();
-		g.setFont(new Font("Arial Black", Font.PLAIN, 25));
+		if (inputPixels == null)
+		{
+			// a bad image is bad input, unlike a failing cache
+			BufferedImage image;
+			try (PipelineStats.Timer timer = PipelineStats.stage("decode"))
+			{
+				image = ImageLoader.read(
+					input instanceof File ? input : new ByteArrayInputStream((byte[])input), settings.pixelsInRow);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalArgumentException("Not a readable image: "+e.getMessage(), e);
+			}
+			if (image == null)
+			{
+				throw new IllegalArgumentException("Not a readable image");
+			}
 
-		// where we draw the grid
-		int startx = 150;
-		int starty = 150;
-		int gridWidth = 2180;
-		int gridHeight = 2180;
+			try (PipelineStats.Timer timer = PipelineStats.stage("resize"))
+			{
+				inputPixels = loadGrid(image, settings.pixelsInRow, settings.parallelism);
+			}
+			if (cache != null)
+			{
+				try (PipelineStats.Timer timer = PipelineStats.stage("cache"))
+				{
+					cache.putGrid(hash, settings.pixelsInRow, inputPixels);
+				}
+			}
+		}
 
-		int cellWidth = gridWidth / pixelsInRow;
-		int cellHeight = cellWidth;
+		Random random = settings.newRandom();
+		int[] palette = palletize(settings, inputPixels, random);
 
-		// fill the output image with white
-		for (int i = 0; i < outputWidth; i++)
+		WorksheetCache.Palettised result = new WorksheetCache.Palettised(inputPixels, palette, random.nextLong());
+		if (cache != null)
 		{
-			for (int j = 0; j < outputHeight; j++)
+			try (PipelineStats.Timer timer = PipelineStats.stage("cache"))
 			{
-				displayImage.setRGB(i, j, 0xFFFFFFFF);
+				cache.putPalette(hash, settings, result);
 			}
 		}
+		return result;
+	}
 
-		// draw the grid
-		for (int i = 0; i < pixelsInRow; i++)
-		{
-			for (int j = 0; j < pixelsInRow; j++)
-			{
-				int x = startx + (i * cellWidth);
-				int y = starty + (j * cellHeight);
+	/*-------------------------------------------------------------------------*/
 
-				g.setColor(Color.DARK_GRAY);
-				g.drawRect(x, y, cellWidth, cellHeight);
+	/**
+	 * Validates and downsizes the image, returning its pixels row by row.
+	 *
+	 * @param parallelism
+	 * 	how many threads to downsize on
+	 */
+	static int[] loadGrid(BufferedImage image, int pixelsInRow, int parallelism) throws Exception
+	{
+		int imageHeight = image.getHeight();
+		int imageWidth = image.getWidth();
 
-				int cellColour = inputPixels[j * pixelsInRow + i];
-				g.setColor(Color.GRAY);
-				g.drawString(paletteKey.get(cellColour), x + cellWidth / 4, y + cellHeight / 4 * 3);
+		// validate square image
+		if (imageHeight != imageWidth)
+		{
+			throw new IllegalArgumentException("requires a square image");
+		}
 
-				if (debug)
-				{
-					for (int k = 0; k < cellWidth; k++)
-					{
-						g.setColor(new Color(cellColour));
-						g.fillRect(x, y, cellWidth, cellHeight);
-					}
-				}
-			}
+		// lose resolution by resizing
+		if (pixelsInRow < imageWidth)
+		{
+			return Downscaler.scale(image, pixelsInRow, pixelsInRow, parallelism);
 		}
 
-		// draw the key
-		int keyStartX = 100;
-		int keyStartY = 2500;
+		// too small to resize, any rows and columns past the image stay empty
+		int[] result = new int[pixelsInRow * pixelsInRow];
+		image.getRGB(0, 0, imageWidth, imageHeight, result, 0, pixelsInRow);
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
 
-		cellWidth = cellWidth * 2;
-		cellHeight = cellHeight * 2;
+	/**
+	 * Builds the palette and replaces every input pixel with a palette colour.
+	 */
+	static int[] palletize(Settings settings, int[] inputPixels, Random random)
+	{
+		int[] palette;
 
-		for (int i = 0; i < palletColours; i++)
+		switch (settings.paletteMethod)
 		{
-			int cellColour = palette[i];
+			case SIMPLE:
+				palette = palletizeSimple(settings.palletColours, inputPixels, settings.lab);
+				break;
+
+			case GIMP:
+				palette = palletizeGimp(settings.palletColours, settings.pixelsInRow, inputPixels);
+				break;
+
+			case FLOYD_STEINBERG:
+				palette = palletizeFloydSteinberg(settings.palletColours, settings.pixelsInRow, inputPixels);
+				break;
+
+			case OCTREE:
+				palette = OctreePalette.palletize(settings.palletColours, inputPixels);
+				break;
 
-			int x = keyStartX + (i * cellWidth);
-			int y = keyStartY;
+			case WU:
+				palette = WuPalette.palletize(settings.palletColours, inputPixels, settings.refinement, settings.lab, settings.parallelism);
+				break;
 
-			g.setColor(new Color(cellColour));
-			g.fillRect(x + 2, y + 2, cellWidth - 4, cellHeight - 4);
+			case AUTO:
+				palette = AutoPalette.palletize(settings, inputPixels, random);
+				break;
 
-			g.setColor(Color.BLACK);
-			g.drawString(paletteKey.get(palette[i]), x + cellWidth / 4, y + cellHeight / 4 * 3);
+			case KMEANS:
+			default:
+				if (settings.miniBatchSize > 0)
+				{
+					palette = KMeansPalette.palletizeMiniBatch(settings.palletColours, inputPixels, settings.miniBatchSize, settings.miniBatchIterations, settings.lab, random);
+				}
+				else
+				{
+					palette = palletizeKMeans(settings.palletColours, inputPixels, settings.parallelism, settings.accelerated, settings.lab, random);
+				}
+				break;
 		}
 
-		// ----
+		return palette;
+	}
+
+	/*-------------------------------------------------------------------------*/
 
-		ImageIO.write(displayImage, "png", new File(outputName));
+	/**
+	 * Draws the A4 worksheet: the numbered grid and the colouring key.
+	 */
+	static BufferedImage renderPage(
+		Settings settings,
+		int[] inputPixels,
+		int[] palette,
+		Random random)
+	{
+		Map<Integer, String> paletteKey = generateColouringKey(palette, settings.colouringKeyMethod, random);
+
+		return PageRenderer.render(settings, inputPixels, palette, paletteKey);
 	}
 
 	/*-------------------------------------------------------------------------*/
@@ -214,10 +419,33 @@ public class Main
 		System.out.println(" -i : input image file (requires a square image)");
 		System.out.println(" -o : output image file");
 		System.out.println();
+		System.out.println("Batch mode, instead of -i and -o:");
+		System.out.println(" -batch : a directory of images, or a file listing one image path per line");
+		System.out.println(" -outdir : directory to write the worksheets to (default current dir)");
+		System.out.println();
+		System.out.println("Server mode, instead of -i and -o:");
+		System.out.println(" --serve : serve worksheets over HTTP, POST an image to /worksheet?n=..&w=..&k=..&d=true");
+		System.out.println(" -port : port to listen on (default 8080)");
+		System.out.println(" -maxjobs : max requests palletising at once (default all cores)");
+		System.out.println(" -maxupload : largest image a request may post, in MB (default 32)");
+		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println(" -n : number of colours in the pallette (default 20)");
 		System.out.println(" -w : output image size in pixels (default 40)");
 		System.out.println(" -k : pallette key gen method, one of INT_SEQ, INT_RAND, ALPHA_SEQ, ALPHA_RAND (default INT_SEQ)");
+		System.out.println(" -m : pallette method, one of KMEANS, SIMPLE, GIMP, FLOYD_STEINBERG, OCTREE, WU, AUTO (default KMEANS)");
+		System.out.println(" -t : number of threads for the pallette step (default all cores)");
+		System.out.println(" -seed : random seed, for reproducible pallettes and keys");
+		System.out.println(" -accel : use accelerated k-means, same pallette but faster for large -n");
+		System.out.println(" -mb : use mini-batch k-means with this many pixels per batch, for very large images (one thread, ignores -t)");
+		System.out.println(" -mbi : number of mini-batch iterations (default 100)");
+		System.out.println(" -refine : number of k-means passes to polish a WU pallette with (default 2)");
+		System.out.println(" -budget : most time an AUTO pallette may take, in milliseconds (default 1000)");
+		System.out.println(" -lab : match colours as the eye sees them (CIE Lab) rather than by RGB, for KMEANS, WU and SIMPLE");
+		System.out.println(" -cache : directory to keep grids and pallettes in, to skip straight to drawing next time");
+		System.out.println(" -cachesize : most the cache may hold, in MB (default 256)");
+		System.out.println(" -indexed : write a palette PNG, much smaller than full colour");
+		System.out.println(" -stats : write the time, CPU and memory each step took to this JSON file");
 		System.out.println(" -d : create a debug output image, with all cells coloured in");
 		System.out.println(" -? : print this help message");
 		System.out.println();
@@ -227,7 +455,12 @@ public class Main
 	}
 
 	/*-------------------------------------------------------------------------*/
-	private static int[] palletizeGimp(
+
+	/**
+	 * @return the posterized colours, fewer than palletColours if that's all
+	 * 	posterizing leaves
+	 */
+	static int[] palletizeGimp(
 		int palletColours,
 		int pixelsInRow,
 		int[] inputPixels)
@@ -236,23 +469,9 @@ public class Main
 
 		int levels = palletColours / 2;
 		levels--;
-		double sr, sg, sb;
-		int dr, dg, db;
 		for (int i = 0; i < inputPixels.length; ++i)
 		{
-			int val = inputPixels[i];
-
-			// to make sr, sg, sb between 0 and 1
-			sr = ((val >> 16) & 0xFF) / 255.0;
-			sg = ((val >> 8) & 0xFF) / 255.0;
-			sb = ((val >> 0) & 0xFF) / 255.0;
-
-			//rounding and NOT TRUNCATING
-			dr = (int)(255 * Math.round(sr * levels) / levels);
-			dg = (int)(255 * Math.round(sg * levels) / levels);
-			db = (int)(255 * Math.round(sb * levels) / levels);
-
-			inputPixels[i] = (inputPixels[i] & 0xFF000000) | dr<<16 | dg<<8 | db<<0;
+			inputPixels[i] = posterize(inputPixels[i], levels);
 		}
 
 		Set<Integer> colours = new HashSet<>();
@@ -264,10 +483,10 @@ public class Main
 
 		if (colours.size() > palletColours)
 		{
-			throw new RuntimeException("Error - too many colours in pallet: "+colours.size());
+			throw new IllegalArgumentException("Error - too many colours in pallet: "+colours.size());
 		}
 
-		int[] result = new int[palletColours];
+		int[] result = new int[colours.size()];
 		List<Integer> list = new ArrayList<>(colours);
 		for (int i = 0; i < result.length; i++)
 		{
@@ -277,22 +496,44 @@ public class Main
 		return result;
 	}
 
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the colour with each channel rounded to the nearest of the
+	 * 	given number of steps, as Gimp's posterize does, alpha kept
+	 */
+	static int posterize(int val, int levels)
+	{
+		// to make sr, sg, sb between 0 and 1
+		double sr = ((val >> 16) & 0xFF) / 255.0;
+		double sg = ((val >> 8) & 0xFF) / 255.0;
+		double sb = ((val >> 0) & 0xFF) / 255.0;
+
+		//rounding and NOT TRUNCATING
+		int dr = (int)(255 * Math.round(sr * levels) / levels);
+		int dg = (int)(255 * Math.round(sg * levels) / levels);
+		int db = (int)(255 * Math.round(sb * levels) / levels);
+
+		return (val & 0xFF000000) | dr<<16 | dg<<8 | db<<0;
+	}
+
 	/*-------------------------------------------------------------------------*/
 		private static int[] palletizeKMeans(
 			int palletColours,
-			int[] inputPixels)
+			int[] inputPixels,
+			int parallelism,
+			boolean accelerated,
+			boolean lab,
+			Random random)
 		{
-			int[] pallet = KMeansPalette.palletize(palletColours, inputPixels);
-
-			assignImagePixelsFromPallet(palletColours, inputPixels, pallet);
-
-			return pallet;
+			return KMeansPalette.palletize(palletColours, inputPixels, parallelism, accelerated, lab, random, KMeans.NO_DEADLINE);
 		}
 
 	/*-------------------------------------------------------------------------*/
-	private static int[] palletizeSimple(
+	static int[] palletizeSimple(
 		int palletColours,
-		int[] inputPixels)
+		int[] inputPixels,
+		boolean lab)
 	{
 		Map<Integer, Integer> colourMap = new HashMap<>();
 
@@ -334,73 +575,58 @@ public class Main
 			result[i] = list.get(i);
 		}
 
-		assignImagePixelsFromPallet(palletColours, inputPixels, result);
+		assignImagePixelsFromPallet(palletColours, inputPixels, result, lab);
 
 		return result;
 	}
 
 	/*-------------------------------------------------------------------------*/
-	private static void assignImagePixelsFromPallet(int palletColours,
-		int[] inputPixels, int[] palletArray)
+	static void assignImagePixelsFromPallet(int palletColours,
+		int[] inputPixels, int[] palletArray, boolean lab)
 	{
-		Set<Integer> pallet = new HashSet<>();
-
-		for (int i = 0; i < palletArray.length; i++)
+		// every pixel ends up as a pallet entry, so this bounds the colours used
+		if (palletArray.length > palletColours)
 		{
-			pallet.add(palletArray[i]);
+			throw new RuntimeException("Error - too many colours in pallet: "+palletArray.length);
 		}
 
-		// assign image pixels from the pallet
-		int r1, g1, b1, r2, g2, b2;
-		for (int i = 0; i < inputPixels.length; ++i)
+		if (lab)
 		{
-			int val = inputPixels[i];
-
-			if (pallet.contains(val))
+			// search in Lab, converting and looking up each distinct colour once
+			ColourHistogram histogram = ColourHistogram.of(inputPixels);
+			int n = histogram.size();
+			float[] l = new float[n], a = new float[n], b = new float[n];
+			histogram.channels(l, a, b, true);
+
+			int k = palletArray.length;
+			float[] pl = new float[k], pa = new float[k], pb = new float[k];
+			CieLab.toLab(palletArray, k, pl, pa, pb);
+			ColourKdTree tree = new ColourKdTree(pl, pa, pb);
+
+			int[] nearest = new int[n];
+			for (int i = 0; i < n; i++)
 			{
-				continue;
+				nearest[i] = tree.nearest(l[i], a[i], b[i]);
 			}
 
-			r1 = ((val >> 16) & 0xFF);
-			g1 = ((val >> 8) & 0xFF);
-			b1 = ((val >> 0) & 0xFF);
-
-			int palletCol = 0;
-			double minDist = Double.MAX_VALUE;
-
-			for (Integer col : pallet)
+			int[] pixelIndex = histogram.getPixelIndex();
+			for (int i = 0; i < inputPixels.length; ++i)
 			{
-				r2 = ((col >> 16) & 0xFF);
-				g2 = ((col >> 8) & 0xFF);
-				b2 = ((col >> 0) & 0xFF);
-
-				double dist = Math.sqrt(Math.pow(r2 - r1, 2) + Math.pow(g2 - g1, 2) + Math.pow(b2 - b1, 2));
-
-				if (dist < minDist)
-				{
-					minDist = dist;
-					palletCol = col;
-				}
+				inputPixels[i] = palletArray[nearest[pixelIndex[i]]];
 			}
-
-			inputPixels[i] = palletCol;
-		}
-
-		Set<Integer> colours = new HashSet<>();
-
-		for (int i = 0; i < inputPixels.length; i++)
-		{
-			colours.add(inputPixels[i]);
+			return;
 		}
 
-		if (colours.size() > palletColours)
+		// assign image pixels from the pallet
+		NearestColour lookup = NearestColour.forPalette(palletArray);
+		for (int i = 0; i < inputPixels.length; ++i)
 		{
-			throw new RuntimeException("Error - too many colours in pallet: "+colours.size());
+			inputPixels[i] = palletArray[lookup.nearest(inputPixels[i])];
 		}
 	}
 
 	/*-------------------------------------------------------------------------*/
-	private static int[] palletizeFloydSteinberg(int palletColours,
+	static int[] palletizeFloydSteinberg(int palletColours,
 		int pixelsInRow,
 		int[] inputPixels)
 	{
@@ -420,9 +646,16 @@ public class Main
 	/*-------------------------------------------------------------------------*/
 	private static Map<Integer, String> generateColouringKey(
 		int[] palette,
-		ColouringKey method)
+		ColouringKey method,
+		Random r)
 	{
-		Random r = new Random(System.currentTimeMillis());
+
+		// the random methods would draw forever looking for an unused label
+		if (palette.length > method.labels)
+		{
+			throw new IllegalArgumentException(
+				"-k "+method+" has labels for at most "+method.labels+" colours, not "+palette.length);
+		}
 
 		Map<Integer, String> paletteKey = new HashMap<>();
 
@@ -477,17 +710,4 @@ public class Main
 		return paletteKey;
 	}
 
-
-	/*-------------------------------------------------------------------------*/
-	private static int[] grabPixels(Image image, int width,
-		int height) throws InterruptedException
-	{
-		int[] result = new int[width * height];
-		PixelGrabber grabber = new PixelGrabber(
-			image, 0, 0, width, height, result, 0, width);
-
-		grabber.grabPixels();
-
-		return result;
-	}
 }
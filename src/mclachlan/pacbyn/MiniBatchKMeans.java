@@ -0,0 +1,196 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Random;
+
+/**
+ * Mini-batch k-means (Sculley, "Web-Scale K-Means Clustering"). Each
+ * iteration draws a fixed size batch of pixels and nudges their centroids
+ * towards them with a per-centroid learning rate, so the cost of fitting
+ * depends on the batch size and iteration count rather than the image size.
+ * Batches are drawn from the pixels, but read their channels from the
+ * grid's histogram, where each distinct colour is converted once, and the
+ * final labelling is of the distinct colours too. Only building the
+ * histogram and mapping the pixels to the palette touch every pixel.
+ */
+class MiniBatchKMeans
+{
+	private final int k;
+	private final int batchSize;
+	private final boolean lab;
+	private final Random random;
+
+	// the grid's distinct colours as channel planes, and each pixel's colour
+	private float[] x, y, z;
+	private int[] pixelIndex;
+
+	// centroids and the number of samples each has absorbed so far
+	private final float[] cr, cg, cb;
+	private final long[] seen;
+
+	// the current batch
+	private final float[] br, bg, bb;
+	private final int[] batchLabels;
+
+	private final DistanceKernel kernel = DistanceKernel.get();
+
+	/*-------------------------------------------------------------------------*/
+	/**
+	 * @param lab
+	 * 	true to cluster in CIE Lab rather than sRGB
+	 */
+	MiniBatchKMeans(int k, int batchSize, boolean lab, Random random)
+	{
+		this.k = k;
+		this.batchSize = batchSize;
+		this.lab = lab;
+		this.random = random;
+
+		this.cr = new float[k];
+		this.cg = new float[k];
+		this.cb = new float[k];
+		this.seen = new long[k];
+
+		this.br = new float[batchSize];
+		this.bg = new float[batchSize];
+		this.bb = new float[batchSize];
+		this.batchLabels = new int[batchSize];
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Fits the centroids to the given pixels, then replaces each pixel with
+	 * the colour of its nearest centroid.
+	 *
+	 * @return the palette, with any centroid no pixel ended up nearest to
+	 * 	left as a black entry at the end
+	 */
+	int[] palletize(int[] pixels, int iterations)
+	{
+		ColourHistogram histogram = ColourHistogram.of(pixels);
+		x = new float[histogram.size()];
+		y = new float[histogram.size()];
+		z = new float[histogram.size()];
+		histogram.channels(x, y, z, lab);
+		pixelIndex = histogram.getPixelIndex();
+
+		seed();
+
+		for (int iteration = 0; iteration < iterations; iteration++)
+		{
+			drawBatch();
+
+			// label the whole batch against the same centroids first
+			kernel.nearest(br, bg, bb, 0, batchSize, cr, cg, cb, k, batchLabels);
+
+			// then take a gradient step per sample
+			for (int i = 0; i < batchSize; i++)
+			{
+				int j = batchLabels[i];
+				seen[j]++;
+				float eta = 1F / seen[j];
+				cr[j] += eta * (br[i] - cr[j]);
+				cg[j] += eta * (bg[i] - cg[j]);
+				cb[j] += eta * (bb[i] - cb[j]);
+			}
+		}
+
+		return assignPixels(pixels, histogram.size());
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Seeds the centroids by running full k-means++ seeded k-means over one
+	 * batch.
+	 */
+	private void seed()
+	{
+		drawBatch();
+
+		KMeans kMeans = new KMeans(br, bg, bb, null, batchSize, k, 1, random);
+		kMeans.fit(10, 0.5F);
+		kMeans.copyCentroids(cr, cg, cb);
+
+		// centroids k-means dropped restart on random samples; a copy of a
+		// live centroid would lose every tie to it and never move
+		for (int j = kMeans.getK(); j < k; j++)
+		{
+			int i = random.nextInt(batchSize);
+			cr[j] = br[i];
+			cg[j] = bg[i];
+			cb[j] = bb[i];
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void drawBatch()
+	{
+		for (int i = 0; i < batchSize; i++)
+		{
+			int colour = pixelIndex[random.nextInt(pixelIndex.length)];
+
+			br[i] = x[colour];
+			bg[i] = y[colour];
+			bb[i] = z[colour];
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Labels every distinct colour with its nearest centroid, then replaces
+	 * each pixel with its colour's centroid, dropping the unused ones.
+	 *
+	 * @param n
+	 * 	the number of distinct colours
+	 */
+	private int[] assignPixels(int[] pixels, int n)
+	{
+		int[] labels = new int[n];
+		kernel.nearest(x, y, z, 0, n, cr, cg, cb, k, labels);
+
+		boolean[] used = new boolean[k];
+		for (int i = 0; i < n; i++)
+		{
+			used[labels[i]] = true;
+		}
+
+		int[] colours = lab ? CieLab.toRgb(cr, cg, cb, k) : null;
+		int[] result = new int[k];
+		int[] remap = new int[k];
+		int live = 0;
+		for (int j = 0; j < k; j++)
+		{
+			if (used[j])
+			{
+				remap[j] = live;
+				result[live++] = lab ? colours[j] : (((int)cr[j] << 16) | ((int)cg[j] << 8) | (int)cb[j]) & 0xFFFFFF;
+			}
+		}
+
+		for (int i = 0; i < pixels.length; i++)
+		{
+			pixels[i] = result[remap[labels[pixelIndex[i]]]];
+		}
+
+		return result;
+	}
+}
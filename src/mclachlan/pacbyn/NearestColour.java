@@ -0,0 +1,62 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+/**
+ * Finds the palette entry nearest to a colour by squared RGB distance, ties
+ * going to the lowest palette index.
+ */
+interface NearestColour
+{
+	/** above this many entries a k-d tree beats the lookup table */
+	int LARGE_PALETTE = 256;
+
+	/**
+	 * @return the index of the palette entry nearest to the given channels,
+	 * 	each in [0, 255]
+	 */
+	int nearest(int r, int g, int b);
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the index of the palette entry nearest to the given 0xRRGGBB
+	 * 	colour, alpha is ignored
+	 */
+	default int nearest(int colour)
+	{
+		return nearest((colour >> 16) & 0xFF, (colour >> 8) & 0xFF, colour & 0xFF);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the best search for a palette of this size
+	 */
+	static NearestColour forPalette(int[] palette)
+	{
+		if (palette.length > LARGE_PALETTE)
+		{
+			return new ColourKdTree(palette);
+		}
+		else
+		{
+			return new PaletteLookup(palette);
+		}
+	}
+}
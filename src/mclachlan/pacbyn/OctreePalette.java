@@ -0,0 +1,415 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+
+/**
+ * Octree colour quantisation (Gervautz and Purgathofer). Each pixel is
+ * walked down a tree that splits RGB space in eight at every level, one bit
+ * of each channel per level, to a leaf {@link #MAX_DEPTH} levels down. Then
+ * the deepest nodes are folded into their parents, those adding the least
+ * squared error first, until there are as many leaves as palette colours. Each
+ * leaf's colour is the mean of its pixels, and every pixel maps to the leaf
+ * it ends up under.
+ * <p>
+ * One pass to build, one to reduce and one to map, with no iterating to
+ * converge, so the time taken follows the grid size and nothing else. No
+ * randomness either: the same grid always gives the same palette.
+ * <p>
+ * Nodes live in flat arrays, grown as needed, rather than as objects. Every
+ * node keeps the pixel count and channel sums of everything below it, so
+ * folding a node is just marking it a leaf.
+ */
+class OctreePalette
+{
+	/** levels below the root, leaves hold 6 bits a channel */
+	static final int MAX_DEPTH = 6;
+
+	private static final int NONE = 0;
+
+	// per node: 8 child slots (NONE, the root can't be a child), level,
+	// whether it's a leaf, pixel count and channel sums of its subtree
+	private int[] children;
+	private byte[] levels;
+	private boolean[] leaf;
+	private int[] counts;
+	private long[] sumR, sumG, sumB;
+	private int size;
+
+	private int leaves;
+
+	/*-------------------------------------------------------------------------*/
+	private OctreePalette(int capacity)
+	{
+		children = new int[capacity * 8];
+		levels = new byte[capacity];
+		leaf = new boolean[capacity];
+		counts = new int[capacity];
+		sumR = new long[capacity];
+		sumG = new long[capacity];
+		sumB = new long[capacity];
+
+		// the root
+		newNode(0);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Builds the palette and replaces each input pixel with the colour of its
+	 * leaf.
+	 *
+	 * @return the palette, at most palletColours entries
+	 */
+	@SuppressWarnings("try")
+	static int[] palletize(int palletColours, int[] inputPixels)
+	{
+		try (PipelineStats.Timer timer = PipelineStats.stage("octree"))
+		{
+			OctreePalette tree = new OctreePalette(Math.min(1 + inputPixels.length * MAX_DEPTH, 4096));
+			for (int pixel : inputPixels)
+			{
+				tree.insert(pixel);
+			}
+			tree.reduce(Math.max(1, palletColours));
+
+			int[] paletteIndex = new int[tree.size];
+			int[] result = tree.palette(paletteIndex);
+
+			for (int i = 0; i < inputPixels.length; i++)
+			{
+				inputPixels[i] = result[paletteIndex[tree.leafOf(inputPixels[i])]];
+			}
+
+			return result;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void insert(int colour)
+	{
+		int r = (colour >> 16) & 0xFF;
+		int g = (colour >> 8) & 0xFF;
+		int b = (colour >> 0) & 0xFF;
+
+		int node = 0;
+		for (int level = 0; ; level++)
+		{
+			counts[node]++;
+			sumR[node] += r;
+			sumG[node] += g;
+			sumB[node] += b;
+
+			if (leaf[node])
+			{
+				return;
+			}
+
+			int slot = node * 8 + octant(r, g, b, level);
+			if (children[slot] == NONE)
+			{
+				int child = newNode(level + 1);
+				children[slot] = child;
+			}
+			node = children[slot];
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Folds nodes into leaves, deepest level first, until there are at most
+	 * maxLeaves leaves. By the time a level is folded everything below it is
+	 * already a leaf.
+	 * <p>
+	 * Folding a node with many children can take the count well under
+	 * maxLeaves, wasting palette colours, so such nodes are passed over while
+	 * others at the level can be folded instead. If that isn't enough, the
+	 * children of one passed over node are merged a pair at a time down to
+	 * exactly maxLeaves.
+	 */
+	private void reduce(int maxLeaves)
+	{
+		for (int level = MAX_DEPTH - 1; level >= 0 && leaves > maxLeaves; level--)
+		{
+			// the inner nodes at this level, cheapest to fold first, ties in
+			// the order they were made (a non-negative float's bits sort as
+			// its value does)
+			int inner = 0;
+			long[] order = new long[size];
+			for (int node = 0; node < size; node++)
+			{
+				if (levels[node] == level && !leaf[node])
+				{
+					order[inner++] = ((long)Float.floatToIntBits((float)foldCost(node)) << 32) | node;
+				}
+			}
+			Arrays.sort(order, 0, inner);
+
+			int passedOver = -1;
+			for (int i = 0; i < inner && leaves > maxLeaves; i++)
+			{
+				int node = (int)order[i];
+
+				if (leaves - (childCount(node) - 1) < maxLeaves)
+				{
+					if (passedOver < 0 || childCount(node) < childCount(passedOver))
+					{
+						passedOver = node;
+					}
+					continue;
+				}
+
+				fold(node);
+			}
+
+			if (leaves > maxLeaves && passedOver >= 0)
+			{
+				mergeChildren(passedOver, maxLeaves);
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return how much the squared error grows if a node's children, all
+	 * 	leaves, become one leaf
+	 */
+	private double foldCost(int node)
+	{
+		double n = counts[node];
+		double r = sumR[node] / n, g = sumG[node] / n, b = sumB[node] / n;
+
+		double result = 0;
+		for (int c = 0; c < 8; c++)
+		{
+			int child = children[node * 8 + c];
+			if (child != NONE)
+			{
+				double nc = counts[child];
+				double dr = sumR[child] / nc - r;
+				double dg = sumG[child] / nc - g;
+				double db = sumB[child] / nc - b;
+				result += nc * (dr * dr + dg * dg + db * db);
+			}
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void fold(int node)
+	{
+		int folded = 0;
+		for (int c = 0; c < 8; c++)
+		{
+			if (children[node * 8 + c] != NONE)
+			{
+				children[node * 8 + c] = NONE;
+				folded++;
+			}
+		}
+
+		leaf[node] = true;
+		leaves += 1 - folded;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Merges pairs of a node's leaf children until there are maxLeaves
+	 * leaves, each time the pair whose merging adds least squared error
+	 * (Ward's criterion). Every slot of a merged child then points at the
+	 * leaf it merged into, so colours still find their leaf going down.
+	 */
+	private void mergeChildren(int node, int maxLeaves)
+	{
+		while (leaves > maxLeaves)
+		{
+			int from = NONE, into = NONE;
+			double cheapest = Double.MAX_VALUE;
+			for (int c = 0; c < 8; c++)
+			{
+				int a = children[node * 8 + c];
+				for (int c2 = c + 1; c2 < 8 && a != NONE; c2++)
+				{
+					int b = children[node * 8 + c2];
+					if (b == NONE || b == a)
+					{
+						continue;
+					}
+
+					double cost = mergeCost(a, b);
+					if (cost < cheapest)
+					{
+						cheapest = cost;
+						from = b;
+						into = a;
+					}
+				}
+			}
+
+			counts[into] += counts[from];
+			sumR[into] += sumR[from];
+			sumG[into] += sumG[from];
+			sumB[into] += sumB[from];
+			for (int c = 0; c < 8; c++)
+			{
+				if (children[node * 8 + c] == from)
+				{
+					children[node * 8 + c] = into;
+				}
+			}
+			leaves--;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return how much the squared error grows if two leaves become one
+	 */
+	private double mergeCost(int a, int b)
+	{
+		double na = counts[a], nb = counts[b];
+		double dr = sumR[a] / na - sumR[b] / nb;
+		double dg = sumG[a] / na - sumG[b] / nb;
+		double db = sumB[a] / na - sumB[b] / nb;
+		return na * nb / (na + nb) * (dr * dr + dg * dg + db * db);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int childCount(int node)
+	{
+		int result = 0;
+		for (int c = 0; c < 8; c++)
+		{
+			if (children[node * 8 + c] != NONE)
+			{
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param paletteIndex
+	 * 	receives the palette index of each leaf
+	 * @return the mean colour of each leaf, in tree order
+	 */
+	private int[] palette(int[] paletteIndex)
+	{
+		int[] result = new int[leaves];
+		Arrays.fill(paletteIndex, -1);
+		int[] stack = new int[MAX_DEPTH * 8 + 1];
+		int top = 0;
+		int next = 0;
+
+		stack[top++] = 0;
+		while (top > 0)
+		{
+			int node = stack[--top];
+			if (paletteIndex[node] >= 0)
+			{
+				// a merged leaf, reached again through another slot
+				continue;
+			}
+			if (leaf[node])
+			{
+				int n = counts[node];
+				int r = (int)((sumR[node] + n / 2) / n);
+				int g = (int)((sumG[node] + n / 2) / n);
+				int b = (int)((sumB[node] + n / 2) / n);
+
+				paletteIndex[node] = next;
+				result[next++] = (r << 16) | (g << 8) | b;
+				continue;
+			}
+
+			// pushed in reverse so they come off in octant order
+			for (int c = 7; c >= 0; c--)
+			{
+				if (children[node * 8 + c] != NONE)
+				{
+					stack[top++] = children[node * 8 + c];
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the leaf a colour that went into the tree ends up under
+	 */
+	private int leafOf(int colour)
+	{
+		int r = (colour >> 16) & 0xFF;
+		int g = (colour >> 8) & 0xFF;
+		int b = (colour >> 0) & 0xFF;
+
+		int node = 0;
+		for (int level = 0; !leaf[node]; level++)
+		{
+			node = children[node * 8 + octant(r, g, b, level)];
+		}
+		return node;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return which of a node's eight children the colour falls in, going by
+	 * 	the next bit down of each channel
+	 */
+	private static int octant(int r, int g, int b, int level)
+	{
+		int shift = 7 - level;
+		return (((r >> shift) & 1) << 2) | (((g >> shift) & 1) << 1) | ((b >> shift) & 1);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int newNode(int level)
+	{
+		if (size == levels.length)
+		{
+			int capacity = size * 2;
+			children = Arrays.copyOf(children, capacity * 8);
+			levels = Arrays.copyOf(levels, capacity);
+			leaf = Arrays.copyOf(leaf, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			sumR = Arrays.copyOf(sumR, capacity);
+			sumG = Arrays.copyOf(sumG, capacity);
+			sumB = Arrays.copyOf(sumB, capacity);
+		}
+
+		int node = size++;
+		levels[node] = (byte)level;
+		if (level == MAX_DEPTH)
+		{
+			leaf[node] = true;
+			leaves++;
+		}
+		return node;
+	}
+}
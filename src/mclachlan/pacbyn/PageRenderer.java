@@ -0,0 +1,362 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.*;
+
+/**
+ * Draws the A4 worksheet straight into the page's pixel array. The
+ * background, cell outlines and cell and key colours are array fills. Each
+ * distinct label is rasterised once into a run mask and then stamped into
+ * every cell that uses it, so text costs follow the palette size rather
+ * than the number of cells.
+ * <p>
+ * In indexed mode the page is a byte per pixel against a colour table of
+ * just the colours a worksheet uses, a quarter of the memory, and it saves
+ * as a much smaller palette PNG. Drawing is the same either way, only the
+ * pens differ: RGB values for a normal page, table indices for an indexed
+ * one.
+ */
+class PageRenderer
+{
+	// A4 size
+	static final int PAGE_WIDTH = 2480;
+	static final int PAGE_HEIGHT = 3508;
+
+	// where we draw the grid
+	private static final int GRID_X = 150;
+	private static final int GRID_Y = 150;
+	private static final int GRID_SIZE = 2180;
+
+	/** the largest grid that still gets a page pixel per cell */
+	static final int MAX_PIXELS_IN_ROW = GRID_SIZE;
+
+	// where we draw the key
+	private static final int KEY_X = 100;
+	private static final int KEY_Y = 2500;
+
+	private static final int WHITE = 0xFFFFFF;
+	private static final int GRID_LINE = 0x404040;
+	private static final int GRID_LABEL = 0x808080;
+	private static final int KEY_LABEL = 0x000000;
+
+	private static final Font FONT = new Font("Arial Black", Font.PLAIN, 25);
+
+	/** the most colours an indexed page can have */
+	private static final int MAX_INDEXED_COLOURS = 256;
+
+	private final BufferedImage page;
+
+	/** the pixels of an RGB page, or null */
+	private final int[] rgb;
+
+	/** the pixels of an indexed page, or null */
+	private final byte[] indices;
+
+	/** colour table index of each RGB colour on an indexed page */
+	private final Map<Integer, Integer> indexOf;
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param colourTable
+	 * 	the colours of an indexed page, or null for an RGB page
+	 */
+	private PageRenderer(int[] colourTable)
+	{
+		if (colourTable == null)
+		{
+			page = new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+			rgb = ((DataBufferInt)page.getRaster().getDataBuffer()).getData();
+			indices = null;
+			indexOf = null;
+		}
+		else
+		{
+			int size = colourTable.length;
+			byte[] r = new byte[size], g = new byte[size], b = new byte[size];
+			indexOf = new HashMap<>();
+			for (int i = 0; i < size; i++)
+			{
+				r[i] = (byte)(colourTable[i] >> 16);
+				g[i] = (byte)(colourTable[i] >> 8);
+				b[i] = (byte)(colourTable[i] >> 0);
+				indexOf.put(colourTable[i], i);
+			}
+
+			page = new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_BYTE_INDEXED,
+				new IndexColorModel(8, size, r, g, b));
+			rgb = null;
+			indices = ((DataBufferByte)page.getRaster().getDataBuffer()).getData();
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param inputPixels
+	 * 	the palletized grid, row by row
+	 * @param palette
+	 * 	the palette, in key order
+	 * @param paletteKey
+	 * 	the label for each palette colour
+	 */
+	static BufferedImage render(
+		Settings settings,
+		int[] inputPixels,
+		int[] palette,
+		Map<Integer, String> paletteKey)
+	{
+		PageRenderer renderer = new PageRenderer(settings.indexed ? colourTable(inputPixels, palette) : null);
+		int gridLine = renderer.pen(GRID_LINE);
+		int gridLabel = renderer.pen(GRID_LABEL);
+		int keyLabel = renderer.pen(KEY_LABEL);
+
+		renderer.fillRect(0, 0, PAGE_WIDTH, PAGE_HEIGHT, renderer.pen(WHITE));
+
+		LabelAtlas atlas = new LabelAtlas(FONT);
+
+		int pixelsInRow = settings.pixelsInRow;
+		int cellSize = GRID_SIZE / pixelsInRow;
+
+		// cell by cell in the same order as ever, since labels can spill
+		// into the next cells and those draw over them
+		for (int i = 0; i < pixelsInRow; i++)
+		{
+			for (int j = 0; j < pixelsInRow; j++)
+			{
+				int x = GRID_X + (i * cellSize);
+				int y = GRID_Y + (j * cellSize);
+
+				renderer.drawOutline(x, y, cellSize, cellSize, gridLine);
+
+				int cellColour = inputPixels[j * pixelsInRow + i];
+				renderer.stamp(atlas.get(paletteKey.get(cellColour)), x + cellSize / 4, y + cellSize / 4 * 3, gridLabel);
+
+				if (settings.debug)
+				{
+					renderer.fillRect(x, y, cellSize, cellSize, renderer.pen(cellColour));
+				}
+			}
+		}
+
+		// the key
+		int keySize = cellSize * 2;
+		for (int i = 0; i < palette.length; i++)
+		{
+			int x = KEY_X + (i * keySize);
+
+			renderer.fillRect(x + 2, KEY_Y + 2, keySize - 4, keySize - 4, renderer.pen(palette[i]));
+			renderer.stamp(atlas.get(paletteKey.get(palette[i])), x + keySize / 4, KEY_Y + keySize / 4 * 3, keyLabel);
+		}
+
+		return renderer.page;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return every colour the page will use, or null if there are too many
+	 * 	for an indexed page
+	 */
+	private static int[] colourTable(int[] inputPixels, int[] palette)
+	{
+		Set<Integer> colours = new LinkedHashSet<>();
+		colours.add(WHITE);
+		colours.add(GRID_LINE);
+		colours.add(GRID_LABEL);
+		colours.add(KEY_LABEL);
+		for (int colour : palette)
+		{
+			colours.add(colour & 0xFFFFFF);
+		}
+		for (int colour : inputPixels)
+		{
+			colours.add(colour & 0xFFFFFF);
+		}
+
+		if (colours.size() > MAX_INDEXED_COLOURS)
+		{
+			return null;
+		}
+
+		int[] result = new int[colours.size()];
+		int i = 0;
+		for (int colour : colours)
+		{
+			result[i++] = colour;
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return what to draw the given RGB colour with on this page
+	 */
+	private int pen(int colour)
+	{
+		colour &= 0xFFFFFF;
+		return indexOf == null ? colour : indexOf.get(colour);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Draws a one pixel outline covering x to x+width and y to y+height
+	 * inclusive, as Graphics.drawRect does.
+	 */
+	private void drawOutline(int x, int y, int width, int height, int pen)
+	{
+		fillRect(x, y, width + 1, 1, pen);
+		fillRect(x, y + height, width + 1, 1, pen);
+		fillRect(x, y + 1, 1, height - 1, pen);
+		fillRect(x + width, y + 1, 1, height - 1, pen);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Draws a label mask with its baseline origin at x, y.
+	 */
+	private void stamp(int[] runs, int x, int y, int pen)
+	{
+		for (int i = 0; i < runs.length; i += 3)
+		{
+			fillRect(x + runs[i], y + runs[i + 1], runs[i + 2], 1, pen);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Fills a rectangle, clipped to the page.
+	 */
+	private void fillRect(int x, int y, int width, int height, int pen)
+	{
+		int x0 = Math.max(x, 0);
+		int y0 = Math.max(y, 0);
+		int x1 = Math.min(x + width, PAGE_WIDTH);
+		int y1 = Math.min(y + height, PAGE_HEIGHT);
+		if (x0 >= x1 || y0 >= y1)
+		{
+			return;
+		}
+
+		for (int row = y0; row < y1; row++)
+		{
+			if (indices == null)
+			{
+				Arrays.fill(rgb, row * PAGE_WIDTH + x0, row * PAGE_WIDTH + x1, pen);
+			}
+			else
+			{
+				Arrays.fill(indices, row * PAGE_WIDTH + x0, row * PAGE_WIDTH + x1, (byte)pen);
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * The labels drawn so far, each as the horizontal runs of pixels that
+	 * drawString would set: triples of x and y relative to the baseline
+	 * origin, and run length. Text isn't antialiased, so a mask stamped in
+	 * one colour gives the same pixels as drawing the string there.
+	 */
+	private static class LabelAtlas
+	{
+		/** room around the pixel bounds, in case they're a little tight */
+		private static final int MARGIN = 2;
+
+		private final Font font;
+		private final FontRenderContext context;
+		private final Map<String, int[]> labels = new HashMap<>();
+
+		LabelAtlas(Font font)
+		{
+			this.font = font;
+
+			Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+			this.context = g.getFontRenderContext();
+			g.dispose();
+		}
+
+		int[] get(String label)
+		{
+			return labels.computeIfAbsent(label, this::rasterise);
+		}
+
+		private int[] rasterise(String label)
+		{
+			Rectangle bounds = font.createGlyphVector(context, label).getPixelBounds(context, 0, 0);
+			int width = bounds.width + MARGIN * 2;
+			int height = bounds.height + MARGIN * 2;
+			int originX = MARGIN - bounds.x;
+			int originY = MARGIN - bounds.y;
+
+			BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = mask.createGraphics();
+			g.setFont(font);
+			g.setColor(Color.WHITE);
+			g.drawString(label, originX, originY);
+			g.dispose();
+
+			int[] pixels = ((DataBufferInt)mask.getRaster().getDataBuffer()).getData();
+			int[] runs = new int[16];
+			int size = 0;
+			for (int y = 0; y < height; y++)
+			{
+				int x = 0;
+				while (x < width)
+				{
+					if (pixels[y * width + x] == 0)
+					{
+						x++;
+						continue;
+					}
+
+					int start = x;
+					while (x < width && pixels[y * width + x] != 0)
+					{
+						x++;
+					}
+
+					if (size + 3 > runs.length)
+					{
+						runs = Arrays.copyOf(runs, runs.length * 2);
+					}
+					runs[size++] = start - originX;
+					runs[size++] = y - originY;
+					runs[size++] = x - start;
+				}
+			}
+
+			return Arrays.copyOf(runs, size);
+		}
+	}
+}
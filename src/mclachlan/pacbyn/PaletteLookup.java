@@ -0,0 +1,168 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+
+/**
+ * Nearest palette colour search through a 5/6/5 bit RGB lookup table.
+ * <p>
+ * Each table cell holds the palette entries that could be nearest to some
+ * colour inside the cell: those whose closest approach to the cell is no
+ * further than the best worst-case distance of any entry. Most cells end up
+ * with a single candidate, so a lookup is usually one table read, and the
+ * rest are settled exactly by scanning their few candidates. Ties go to the
+ * lowest palette index.
+ * <p>
+ * Cells are filled on first use, so the build cost follows the colours
+ * actually queried. Not thread safe.
+ */
+class PaletteLookup implements NearestColour
+{
+	private static final int R_BITS = 5, G_BITS = 6, B_BITS = 5;
+	private static final int R_SHIFT = 8 - R_BITS, G_SHIFT = 8 - G_BITS, B_SHIFT = 8 - B_BITS;
+
+	private final int[] pr, pg, pb;
+
+	/** per cell, offset of its candidate list in the pool, or -1 */
+	private final int[] cells;
+
+	/** candidate lists, each a count followed by that many palette indices */
+	private int[] pool;
+	private int poolSize;
+
+	/*-------------------------------------------------------------------------*/
+	PaletteLookup(int[] palette)
+	{
+		int k = palette.length;
+		pr = new int[k];
+		pg = new int[k];
+		pb = new int[k];
+		for (int i = 0; i < k; i++)
+		{
+			pr[i] = (palette[i] >> 16) & 0xFF;
+			pg[i] = (palette[i] >> 8) & 0xFF;
+			pb[i] = (palette[i] >> 0) & 0xFF;
+		}
+
+		cells = new int[1 << (R_BITS + G_BITS + B_BITS)];
+		Arrays.fill(cells, -1);
+		pool = new int[1024];
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Override
+	public int nearest(int r, int g, int b)
+	{
+		int cell = ((r >> R_SHIFT) << (G_BITS + B_BITS)) | ((g >> G_SHIFT) << B_BITS) | (b >> B_SHIFT);
+
+		int offset = cells[cell];
+		if (offset < 0)
+		{
+			offset = buildCell(cell);
+		}
+
+		int count = pool[offset];
+		if (count == 1)
+		{
+			return pool[offset + 1];
+		}
+
+		// exact refinement over the candidates, in index order
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int c = 1; c <= count; c++)
+		{
+			int i = pool[offset + c];
+			int dr = r - pr[i];
+			int dg = g - pg[i];
+			int db = b - pb[i];
+			int distance = dr * dr + dg * dg + db * db;
+
+			if (distance < bestDistance)
+			{
+				bestDistance = distance;
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private int buildCell(int cell)
+	{
+		int rLo = (cell >> (G_BITS + B_BITS)) << R_SHIFT;
+		int gLo = ((cell >> B_BITS) & ((1 << G_BITS) - 1)) << G_SHIFT;
+		int bLo = (cell & ((1 << B_BITS) - 1)) << B_SHIFT;
+		int rHi = rLo + (1 << R_SHIFT) - 1;
+		int gHi = gLo + (1 << G_SHIFT) - 1;
+		int bHi = bLo + (1 << B_SHIFT) - 1;
+
+		int k = pr.length;
+
+		// the smallest distance that is guaranteed to reach some entry from
+		// anywhere in the cell
+		int threshold = Integer.MAX_VALUE;
+		for (int i = 0; i < k; i++)
+		{
+			int far = farthest(pr[i], rLo, rHi) + farthest(pg[i], gLo, gHi) + farthest(pb[i], bLo, bHi);
+			threshold = Math.min(threshold, far);
+		}
+
+		ensurePool(k + 1);
+		int offset = poolSize;
+		int count = 0;
+		for (int i = 0; i < k; i++)
+		{
+			int near = closest(pr[i], rLo, rHi) + closest(pg[i], gLo, gHi) + closest(pb[i], bLo, bHi);
+			if (near <= threshold)
+			{
+				pool[offset + 1 + count++] = i;
+			}
+		}
+		pool[offset] = count;
+		poolSize += count + 1;
+
+		cells[cell] = offset;
+		return offset;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int closest(int v, int lo, int hi)
+	{
+		int d = v < lo ? lo - v : v > hi ? v - hi : 0;
+		return d * d;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int farthest(int v, int lo, int hi)
+	{
+		int d = Math.max(v - lo, hi - v);
+		return d * d;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void ensurePool(int extra)
+	{
+		if (poolSize + extra > pool.length)
+		{
+			pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + extra));
+		}
+	}
+}
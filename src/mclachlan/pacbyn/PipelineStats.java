@@ -0,0 +1,322 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Timing for the steps of making a worksheet.
+ * <p>
+ * Every step is a JFR event, {@code mclachlan.pacbyn.Stage}, every
+ * k-means fit a {@code mclachlan.pacbyn.KMeans} event with its iteration
+ * count, and every -m AUTO choice a {@code mclachlan.pacbyn.PaletteChoice}
+ * event, so a recording shows where a slow worksheet spent its time. The
+ * events cost next to nothing when JFR isn't recording.
+ * <p>
+ * A thread can also {@link #begin} gathering its steps into a summary,
+ * which -stats writes as JSON: wall time, CPU time and allocated bytes per
+ * step, how k-means went, which method was chosen, and which distance
+ * kernel the nearest centroid searches ran on. CPU time is the whole
+ * process's, so it takes in the palette's worker threads. Allocation is the
+ * gathering thread's only, which misses little, since the k-means workers
+ * don't allocate per iteration.
+ */
+class PipelineStats
+{
+	private static final ThreadLocal<PipelineStats> CURRENT = new ThreadLocal<>();
+
+	private final List<String> stages = new ArrayList<>();
+	private final List<long[]> measures = new ArrayList<>();
+	private final long start = System.nanoTime();
+	private int iterations = -1, clusters, samples;
+	private boolean converged;
+	private String method;
+	private double predictedMs;
+	private int budgetMs;
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Starts gathering the steps run on this thread, until {@link #end}.
+	 */
+	static PipelineStats begin()
+	{
+		PipelineStats result = new PipelineStats();
+		CURRENT.set(result);
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	static void end()
+	{
+		CURRENT.remove();
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Starts timing a step, for use in try-with-resources. The timer is
+	 * never used in the body, so methods timing steps suppress javac's
+	 * "try" lint.
+	 */
+	static Timer stage(String name)
+	{
+		return new Timer(name, CURRENT.get());
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Records how a k-means fit went.
+	 *
+	 * @param samples
+	 * 	the number of points clustered
+	 * @param clusters
+	 * 	the number of clusters left at the end
+	 */
+	static void kMeans(int samples, int clusters, int iterations, boolean converged)
+	{
+		KMeansEvent event = new KMeansEvent();
+		if (event.shouldCommit())
+		{
+			event.samples = samples;
+			event.clusters = clusters;
+			event.iterations = iterations;
+			event.converged = converged;
+			event.commit();
+		}
+
+		PipelineStats stats = CURRENT.get();
+		if (stats != null)
+		{
+			stats.samples = samples;
+			stats.clusters = clusters;
+			stats.iterations = iterations;
+			stats.converged = converged;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Records which palette method -m AUTO chose.
+	 *
+	 * @param predictedMs
+	 * 	how long the method was expected to take
+	 * @param budgetMs
+	 * 	how long the palette step was allowed
+	 */
+	static void paletteChoice(String method, double predictedMs, int budgetMs)
+	{
+		PaletteChoiceEvent event = new PaletteChoiceEvent();
+		if (event.shouldCommit())
+		{
+			event.method = method;
+			event.predictedMs = predictedMs;
+			event.budgetMs = budgetMs;
+			event.commit();
+		}
+
+		PipelineStats stats = CURRENT.get();
+		if (stats != null)
+		{
+			stats.method = method;
+			stats.predictedMs = predictedMs;
+			stats.budgetMs = budgetMs;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	void write(File file) throws IOException
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"wallMs\": ").append(millis(System.nanoTime() - start)).append(",\n");
+		json.append("  \"kernel\": \"").append(DistanceKernel.get().name()).append("\",\n");
+		json.append("  \"stages\": [");
+		for (int i = 0; i < stages.size(); i++)
+		{
+			long[] m = measures.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("    {\"name\": \"").append(stages.get(i)).append('"');
+			json.append(", \"wallMs\": ").append(millis(m[0]));
+			json.append(", \"cpuMs\": ").append(m[1] < 0 ? "null" : millis(m[1]));
+			json.append(", \"allocatedBytes\": ").append(m[2] < 0 ? "null" : Long.toString(m[2]));
+			json.append('}');
+		}
+		json.append("\n  ]");
+		if (iterations >= 0)
+		{
+			json.append(",\n  \"kmeans\": {");
+			json.append("\"samples\": ").append(samples);
+			json.append(", \"clusters\": ").append(clusters);
+			json.append(", \"iterations\": ").append(iterations);
+			json.append(", \"converged\": ").append(converged);
+			json.append('}');
+		}
+		if (method != null)
+		{
+			json.append(",\n  \"auto\": {");
+			json.append("\"method\": \"").append(method).append('"');
+			json.append(", \"predictedMs\": ").append(String.format(Locale.ROOT, "%.3f", predictedMs));
+			json.append(", \"budgetMs\": ").append(budgetMs);
+			json.append('}');
+		}
+		json.append("\n}\n");
+
+		Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static String millis(long nanos)
+	{
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return CPU time used by the whole process, or -1 if this JVM can't
+	 * 	tell
+	 */
+	private static long processCpuTime()
+	{
+		if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean)
+		{
+			return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if this JVM can't
+	 * 	tell
+	 */
+	private static long allocatedBytes()
+	{
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * One step being timed.
+	 */
+	static class Timer implements AutoCloseable
+	{
+		private final StageEvent event = new StageEvent();
+		private final PipelineStats stats;
+		private final long wall, cpu, allocated;
+
+		private Timer(String name, PipelineStats stats)
+		{
+			this.stats = stats;
+			event.stage = name;
+			event.begin();
+
+			wall = System.nanoTime();
+			cpu = stats == null ? 0 : processCpuTime();
+			allocated = stats == null ? 0 : allocatedBytes();
+		}
+
+		@Override
+		public void close()
+		{
+			event.commit();
+
+			if (stats != null)
+			{
+				long cpuNow = processCpuTime();
+				long allocatedNow = allocatedBytes();
+
+				stats.stages.add(event.stage);
+				stats.measures.add(new long[]{
+					System.nanoTime() - wall,
+					cpuNow < 0 ? -1 : cpuNow - cpu,
+					allocatedNow < 0 ? -1 : allocatedNow - allocated});
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Name("mclachlan.pacbyn.Stage")
+	@Label("Worksheet Stage")
+	@Category("PACBYN")
+	@Description("One step of making a worksheet")
+	static class StageEvent extends Event
+	{
+		@Label("Stage")
+		String stage;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Name("mclachlan.pacbyn.KMeans")
+	@Label("K-Means Fit")
+	@Category("PACBYN")
+	@Description("How a k-means palette fit went")
+	static class KMeansEvent extends Event
+	{
+		@Label("Samples")
+		int samples;
+
+		@Label("Clusters")
+		int clusters;
+
+		@Label("Iterations")
+		int iterations;
+
+		@Label("Converged")
+		boolean converged;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@Name("mclachlan.pacbyn.PaletteChoice")
+	@Label("Palette Choice")
+	@Category("PACBYN")
+	@Description("The palette method -m AUTO chose, and why")
+	static class PaletteChoiceEvent extends Event
+	{
+		@Label("Method")
+		String method;
+
+		@Label("Predicted Milliseconds")
+		double predictedMs;
+
+		@Label("Budget Milliseconds")
+		int budgetMs;
+	}
+}
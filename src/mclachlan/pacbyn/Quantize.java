@@ -17,20 +17,6 @@ import java.util.*;
 
 public class Quantize {
 
-public static class RGBTriple {
-    public final int[] channels;
-    public RGBTriple() { channels = new int[3]; }
-
-    public RGBTriple(int color) { 
-        int r = (color >> 16) & 0xFF;
-        int g = (color >> 8) & 0xFF;
-        int b = (color >> 0) & 0xFF;
-        channels = new int[]{(int)r, (int)g, (int)b};
-    }
-    public RGBTriple(int R, int G, int B)
-    { channels = new int[]{(int)R, (int)G, (int)B}; }
-}
-
 /* The authors of this work have released all rights to it and placed it
 in the public domain under the Creative Commons CC0 1.0 waiver
 (http://creativecommons.org/publicdomain/zero/1.0/).
@@ -47,94 +33,85 @@ Retrieved from: http://en.literateprograms.org/Floyd-Steinberg_dithering_(Java)?
  */
 public static class FloydSteinbergDither
 {
-    private static int plus_truncate_uchar(int a, int b) {
-        if ((a & 0xff) + b < 0)
-            return 0;
-        else if ((a & 0xff) + b > 255)
-            return (int)255;
-        else
-            return (int)(a + b);
-    }
-
-
-    private static int findNearestColor(RGBTriple color, RGBTriple[] palette) {
-        int minDistanceSquared = 255*255 + 255*255 + 255*255 + 1;
-        int bestIndex = 0;
-        for (int i = 0; i < palette.length; i++) {
-            int Rdiff = (color.channels[0] & 0xff) - (palette[i].channels[0] & 0xff);
-            int Gdiff = (color.channels[1] & 0xff) - (palette[i].channels[1] & 0xff);
-            int Bdiff = (color.channels[2] & 0xff) - (palette[i].channels[2] & 0xff);
-            int distanceSquared = Rdiff*Rdiff + Gdiff*Gdiff + Bdiff*Bdiff;
-            if (distanceSquared < minDistanceSquared) {
-                minDistanceSquared = distanceSquared;
-                bestIndex = i;
-            }
-        }
-        return bestIndex;
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
     }
 
-    public static int[][] floydSteinbergDither(RGBTriple[][] image, RGBTriple[] palette)
-    {
-        int[][] result = new int[image.length][image[0].length];
+    /**
+     * Dithers the pixels in place against the palette, leaving every pixel
+     * one of the palette colours.
+     */
+    public static void generateDither(int[] pixels, int[] p, int w, int h) {
+        generateDither(pixels, p, w, h, false);
+    }
 
-        for (int y = 0; y < image.length; y++) {
-            for (int x = 0; x < image[y].length; x++) {
-                RGBTriple currentPixel = image[y][x];
-                int index = findNearestColor(currentPixel, palette);
-                result[y][x] = index;
+    /**
+     * Dithers the pixels in place against the palette. Only two rows of
+     * working channel values are held, each interleaved r, g, b, and nothing
+     * is allocated per pixel. Each diffused error is clamped to [0, 255] as
+     * it lands.
+     *
+     * @param serpentine
+     *      scan odd rows right to left, with the kernel mirrored, which
+     *      avoids the diagonal artifacts of always scanning one way
+     */
+    public static void generateDither(int[] pixels, int[] p, int w, int h, boolean serpentine) {
+        NearestColour lookup = NearestColour.forPalette(p);
+
+        short[] current = new short[w * 3];
+        short[] next = new short[w * 3];
+        loadRow(pixels, 0, w, current);
+
+        for (int y = 0; y < h; y++) {
+            boolean hasNext = y + 1 < h;
+            if (hasNext) {
+                loadRow(pixels, y + 1, w, next);
+            }
 
-                for (int i = 0; i < 3; i++)
-                {
-                    int error = (currentPixel.channels[i] & 0xff) - (palette[index].channels[i] & 0xff);
-                    if (x + 1 < image[0].length) {
-                        image[y+0][x+1].channels[i] =
-                                plus_truncate_uchar(image[y+0][x+1].channels[i], (error*7) >> 4);
+            boolean reverse = serpentine && (y & 1) == 1;
+            int dir = reverse ? -1 : 1;
+            int x = reverse ? w - 1 : 0;
+
+            for (int n = 0; n < w; n++, x += dir) {
+                int o = x * 3;
+                int index = lookup.nearest(current[o], current[o + 1], current[o + 2]);
+                int colour = p[index];
+                pixels[y * w + x] = colour;
+
+                int ahead = x + dir;
+                int behind = x - dir;
+                boolean hasAhead = ahead >= 0 && ahead < w;
+                boolean hasBehind = behind >= 0 && behind < w;
+
+                for (int i = 0; i < 3; i++) {
+                    int error = current[o + i] - ((colour >> (16 - i * 8)) & 0xff);
+                    if (hasAhead) {
+                        current[ahead * 3 + i] = (short)clamp(current[ahead * 3 + i] + ((error * 7) >> 4));
                     }
-                    if (y + 1 < image.length) {
-                        if (x - 1 > 0) {
-                            image[y+1][x-1].channels[i] =
-                                    plus_truncate_uchar(image[y+1][x-1].channels[i], (error*3) >> 4);
+                    if (hasNext) {
+                        if (hasBehind) {
+                            next[behind * 3 + i] = (short)clamp(next[behind * 3 + i] + ((error * 3) >> 4));
                         }
-                        image[y+1][x+0].channels[i] =
-                                plus_truncate_uchar(image[y+1][x+0].channels[i], (error*5) >> 4);
-                        if (x + 1 < image[0].length) {
-                            image[y+1][x+1].channels[i] =
-                                    plus_truncate_uchar(image[y+1][x+1].channels[i], (error*1) >> 4);
+                        next[o + i] = (short)clamp(next[o + i] + ((error * 5) >> 4));
+                        if (hasAhead) {
+                            next[ahead * 3 + i] = (short)clamp(next[ahead * 3 + i] + ((error * 1) >> 4));
                         }
                     }
                 }
             }
-        }
-        return result;
-    }
 
-    public static void generateDither(int[] pixels, int[] p, int w, int h){
-        RGBTriple[] palette = new RGBTriple[p.length];
-        for (int i = 0; i < palette.length; i++) {
-            int color = p[i];
-            palette[i] = new RGBTriple(color);
-        }
-        RGBTriple[][] image = new RGBTriple[w][h];
-        for (int x = w; x-- > 0; ) {
-            for (int y = h; y-- > 0; ) {
-                int index = y * w + x;
-                int color = pixels[index];
-                image[x][y] = new RGBTriple(color);
-            }
+            short[] t = current;
+            current = next;
+            next = t;
         }
-
-        int[][] result = floydSteinbergDither(image, palette);
-        convert(result, pixels, p, w, h);
-
     }
 
-    public static void convert(int[][] result, int[] pixels, int[] p, int w, int h){
-        for (int x = w; x-- > 0; ) {
-            for (int y = h; y-- > 0; ) {
-                int index = y * w + x;
-                int index2 = result[x][y];
-                pixels[index] = p[index2];
-            }
+    private static void loadRow(int[] pixels, int y, int w, short[] row) {
+        for (int x = 0, i = y * w; x < w; x++, i++) {
+            int color = pixels[i];
+            row[x * 3] = (short)((color >> 16) & 0xFF);
+            row[x * 3 + 1] = (short)((color >> 8) & 0xFF);
+            row[x * 3 + 2] = (short)((color >> 0) & 0xFF);
         }
     }
 }
@@ -233,43 +210,228 @@ public static void fillPalette(List<PaletteColor> fillColors, List<PaletteColor>
     }
 }
 
-public static void reducePaletteByAverageDistance(List<PaletteColor> colors, int max_cols, ReductionStrategy reductionStrategy){
-    while (colors.size() > max_cols) {
+/**
+ * Working state for palette reduction. Palette colours never change while
+ * reducing, only which of them are still live, so pair distances are stable
+ * and can be maintained incrementally:
+ * <ul>
+ * <li>each colour tracks its nearest live colour further along the list,
+ * so the closest pair is the smallest of those and only colours that
+ * pointed at a removed one need rescanning</li>
+ * <li>each colour tracks its summed distance to the other live colours,
+ * updated by subtracting the removed colour's distances</li>
+ * </ul>
+ * Pixel indices are merged through a union-find and only copied into the
+ * surviving PaletteColors at the end.
+ */
+private static class Reduction {
+    final List<PaletteColor> colors;
+    final int n;
+    final int[] r, g, b;
+    final boolean[] removed;
+    int live;
+
+    // nearest live colour after each colour in list order, and its distance
+    final int[] next;
+    final float[] nextDistance;
+
+    // summed distance to every other live colour
+    final double[] sumDistance;
+
+    // union-find of merged colours, and the pixel count of each root
+    final int[] parent;
+    final int[] size;
+
+    Reduction(List<PaletteColor> colors) {
+        this.colors = colors;
+        this.n = colors.size();
+        this.live = n;
+        r = new int[n];
+        g = new int[n];
+        b = new int[n];
+        removed = new boolean[n];
+        next = new int[n];
+        nextDistance = new float[n];
+        sumDistance = new double[n];
+        parent = new int[n];
+        size = new int[n];
+        for (int i = 0; i < n; i++) {
+            int color = colors.get(i).color;
+            r[i] = (color >> 16) & 0xFF;
+            g[i] = (color >> 8) & 0xFF;
+            b[i] = (color >> 0) & 0xFF;
+            parent[i] = i;
+            size[i] = colors.get(i).indices.size();
+        }
+    }
+
+    /** the same value as getPixelDistance, without the Math.pow calls */
+    float distance(int i, int j) {
+        int dr = r[i] - r[j];
+        int dg = g[i] - g[j];
+        int db = b[i] - b[j];
+        return (float)Math.sqrt(dr * dr + dg * dg + db * db);
+    }
+
+    void initNearestPairs() {
+        for (int i = 0; i < n; i++) {
+            findNext(i);
+        }
+    }
+
+    void findNext(int i) {
+        next[i] = -1;
+        nextDistance[i] = Float.MAX_VALUE;
+        for (int j = i + 1; j < n; j++) {
+            if (!removed[j]) {
+                float distance = distance(i, j);
+                if (next[i] == -1 || distance < nextDistance[i]) {
+                    next[i] = j;
+                    nextDistance[i] = distance;
+                }
+            }
+        }
+    }
+
+    /** the first live colour of the closest pair, which pairs with next[] */
+    int closestPair() {
         int index = -1;
+        for (int i = 0; i < n; i++) {
+            if (!removed[i] && next[i] != -1 && (index == -1 || nextDistance[i] < nextDistance[index])) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    void initSumDistances() {
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                float distance = distance(i, j);
+                sumDistance[i] += distance;
+                sumDistance[j] += distance;
+            }
+        }
+    }
+
+    /** average distance from i to every other live colour, summed in list order as before */
+    float averageDistance(int i, int exclude) {
+        float result = 0;
+        for (int j = 0; j < n; j++) {
+            if (!removed[j] && j != i && j != exclude) {
+                result += distance(i, j);
+            }
+        }
+        return result;
+    }
+
+    /** the live colour nearest to i, the first in list order on a tie */
+    int nearestLive(int i) {
+        int best = -1;
         float minDistance = -1;
-        for (int i = 0; i < colors.size(); i++) {
-            PaletteColor color1 = colors.get(i);
-            float averageDistance = 0;
-            int count = 0;
-            for (int j = 0; j < colors.size(); j++) {
-                PaletteColor color2 = colors.get(j);
-                if (color1 == color2) {
-                    continue;
+        for (int j = 0; j < n; j++) {
+            if (!removed[j] && j != i) {
+                float distance = distance(i, j);
+                if (best == -1 || distance < minDistance) {
+                    best = j;
+                    minDistance = distance;
                 }
-                averageDistance += getPixelDistance(color1, color2);
-                count++;
             }
-            averageDistance/=count;
-            if (minDistance == -1 || averageDistance < minDistance) {
-                minDistance = averageDistance;
-                index = i;
+        }
+        return best;
+    }
+
+    /** removes a colour, merging its pixels into another */
+    void merge(int from, int into) {
+        removed[from] = true;
+        live--;
+        parent[from] = into;
+        size[into] += size[from];
+
+        for (int i = 0; i < from; i++) {
+            if (!removed[i] && next[i] == from) {
+                findNext(i);
+            }
+        }
+    }
+
+    void removeFromSums(int index) {
+        for (int j = 0; j < n; j++) {
+            if (!removed[j]) {
+                sumDistance[j] -= distance(index, j);
+            }
+        }
+    }
+
+    int root(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /** moves the merged pixel indices into the survivors and drops the removed colours from the list */
+    void finish() {
+        List<PaletteColor> survivors = new ArrayList<>(live);
+        for (int i = 0; i < n; i++) {
+            if (removed[i]) {
+                colors.get(root(i)).indices.addAll(colors.get(i).indices);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!removed[i]) {
+                survivors.add(colors.get(i));
+            }
+        }
+        colors.clear();
+        colors.addAll(survivors);
+    }
+}
+
+public static void reducePaletteByAverageDistance(List<PaletteColor> colors, int max_cols, ReductionStrategy reductionStrategy){
+    if (colors.size() <= max_cols) {
+        return;
+    }
+    Reduction reduction = new Reduction(colors);
+    reduction.initSumDistances();
+
+    while (reduction.live > max_cols) {
+        // the running double sums find the smallest average, then anything
+        // that could still win once summed in float is re-summed in the old
+        // order to pick the same colour as before. A float sum of count
+        // non-negative terms is within count * 2^-24 of the exact one, so the
+        // float winner's exact sum is within about twice that of the smallest;
+        // the window allows twice that again, plus some for the double sums
+        int count = reduction.live - 1;
+        double minSum = Double.MAX_VALUE;
+        for (int i = 0; i < reduction.n; i++) {
+            if (!reduction.removed[i]) {
+                minSum = Math.min(minSum, reduction.sumDistance[i]);
             }
         }
-        PaletteColor removed = colors.remove(index);
-        // find the color with the least distance:
-        PaletteColor best = null;
-        minDistance = -1;
-        for (int i = 0; i < colors.size(); i++) {
-            PaletteColor c = colors.get(i);
-            float distance = getPixelDistance(c, removed);
-            if (best == null || distance < minDistance) {
-                best = c;
-                minDistance = distance;
+        double tolerance = minSum * count * 0x1p-22 + 1e-3;
+
+        int index = -1;
+        float minDistance = -1;
+        for (int i = 0; i < reduction.n; i++) {
+            if (!reduction.removed[i] && reduction.sumDistance[i] <= minSum + tolerance) {
+                float averageDistance = reduction.averageDistance(i, -1) / count;
+                if (minDistance == -1 || averageDistance < minDistance) {
+                    minDistance = averageDistance;
+                    index = i;
+                }
             }
         }
-        best.indices.addAll(removed.indices);
 
+        // merge into the color with the least distance
+        reduction.removed[index] = true;
+        int best = reduction.nearestLive(index);
+        reduction.removed[index] = false;
+        reduction.merge(index, best);
+        reduction.removeFromSums(index);
     }
+    reduction.finish();
 }
 /**
  * Reduces the given color palette until it has the given max_cols size.
@@ -281,71 +443,48 @@ public static void reducePalette(List<PaletteColor> colors, int max_cols, Reduct
         reducePaletteByAverageDistance(colors, max_cols, reductionStrategy);
         return;
     }
-    while (colors.size() > max_cols) {
-        int index1 = -1;
-        int index2 = -1;
-        float minDistance = -1;
-        for (int i = 0; i < colors.size(); i++) {
-            PaletteColor color1 = colors.get(i);
-            for (int j = i+1; j < colors.size(); j++) {
-                PaletteColor color2 = colors.get(j);
-                if (color1 == color2) {
-                    continue;
-                }
-                float distance = getPixelDistance(color1, color2);
-                if (index1 == -1 || distance < minDistance) {
-                    index1 = i;
-                    index2 = j;
-                    minDistance = distance;
-                }
-            }
-        }
-        PaletteColor color1 = colors.get(index1);
-        PaletteColor color2 = colors.get(index2);
+    if (colors.size() <= max_cols) {
+        return;
+    }
+    Reduction reduction = new Reduction(colors);
+    reduction.initNearestPairs();
+
+    while (reduction.live > max_cols) {
+        int index1 = reduction.closestPair();
+        int index2 = reduction.next[index1];
 
         switch (reductionStrategy) {
             case BETTER_CONTRAST:
                 // remove the color with the lower average distance to the other palette colors
-                int count = 0;
-                float distance1 = 0;
-                float distance2 = 0;
-                for (PaletteColor c : colors) {
-                    if (c != color1 && c != color2) {
-                        count++;
-                        distance1 += getPixelDistance(color1, c);
-                        distance2 += getPixelDistance(color2, c);
-                    }
-                }
+                int count = reduction.live - 2;
+                float distance1 = reduction.averageDistance(index1, index2);
+                float distance2 = reduction.averageDistance(index2, index1);
                 if (count != 0 && distance1 != distance2) {
                     distance1 /= (float)count;
                     distance2 /= (float)count;
                     if (distance1 < distance2) {
                         // remove color 1;
-                        colors.remove(index1);
-                        color2.indices.addAll(color1.indices);
+                        reduction.merge(index1, index2);
                     } else{
                         // remove color 2;
-                        colors.remove(index2);
-                        color1.indices.addAll(color2.indices);
+                        reduction.merge(index2, index1);
                     }
                     break;
                 }
                 //$FALL-THROUGH$
             default:
                 // remove the color with viewer mappings to the input pixels
-                if (color1.indices.size() < color2.indices.size()) {
+                if (reduction.size[index1] < reduction.size[index2]) {
                     // remove color 1;
-                    colors.remove(index1);
-                    color2.indices.addAll(color1.indices);
+                    reduction.merge(index1, index2);
                 } else{
                     // remove color 2;
-                    colors.remove(index2);
-                    color1.indices.addAll(color2.indices);
+                    reduction.merge(index2, index1);
                 }
                 break;
         }
-
     }
+    reduction.finish();
 }
 
 /**
@@ -355,36 +494,23 @@ public static void reducePalette(List<PaletteColor> colors, int max_cols, Reduct
  * returned PaletteColor instances.
  */
 public static List<PaletteColor> createInitialPalette(int pixels[], int[] palette){
-    Map<Integer, Integer> used = new HashMap<>();
+    // the position in result of each palette colour, or -1 if not used yet
+    int[] used = new int[palette.length];
+    Arrays.fill(used, -1);
     ArrayList<PaletteColor> result = new ArrayList<>();
 
+    ColourKdTree tree = new ColourKdTree(palette);
+
     for (int i = 0, l = pixels.length; i < l; i++) {
-        double bestDistance = Double.MAX_VALUE;
-        int bestIndex = -1;
-
-        int pixel = pixels[i];
-        int r1 = (pixel >> 16) & 0xFF;
-        int g1 = (pixel >> 8) & 0xFF;
-        int b1 = (pixel >> 0) & 0xFF;
-        for (int k = 0; k < palette.length; k++) {
-            int pixel2 = palette[k];
-            int r2 = (pixel2 >> 16) & 0xFF;
-            int g2 = (pixel2 >> 8) & 0xFF;
-            int b2 = (pixel2 >> 0) & 0xFF;
-            double dist = getPixelDistance(r1, g1, b1, r2, g2, b2);
-            if (dist < bestDistance) {
-                bestDistance = dist;
-                bestIndex = k;
-            }
-        }
+        int bestIndex = tree.nearest(pixels[i]);
 
-        Integer index = used.get(bestIndex);
+        int index = used[bestIndex];
         PaletteColor c;
-        if (index == null) {
+        if (index == -1) {
             index = result.size();
             c = new PaletteColor(palette[bestIndex]);
             result.add(c);
-            used.put(bestIndex, index);
+            used[bestIndex] = index;
         } else{
             c = result.get(index);
         }
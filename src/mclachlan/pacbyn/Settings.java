@@ -0,0 +1,88 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The parameters for turning one image into a worksheet.
+ */
+class Settings
+{
+	int palletColours = 20;
+	int pixelsInRow = 40;
+	boolean debug = false;
+	Main.ColouringKey colouringKeyMethod = Main.ColouringKey.INT_SEQ;
+	Main.PaletteMethod paletteMethod = Main.PaletteMethod.KMEANS;
+	int parallelism = Runtime.getRuntime().availableProcessors();
+	Long seed = null;
+	int miniBatchSize = 0;
+	int miniBatchIterations = 100;
+	int refinement = 2;
+	int budget = 1000;
+	boolean lab = false;
+	boolean accelerated = false;
+	boolean indexed = false;
+	File cacheDir = null;
+	long cacheSize = 256L * 1024 * 1024;
+
+	/*-------------------------------------------------------------------------*/
+	Settings copy()
+	{
+		Settings result = new Settings();
+		result.palletColours = palletColours;
+		result.pixelsInRow = pixelsInRow;
+		result.debug = debug;
+		result.colouringKeyMethod = colouringKeyMethod;
+		result.paletteMethod = paletteMethod;
+		result.parallelism = parallelism;
+		result.seed = seed;
+		result.miniBatchSize = miniBatchSize;
+		result.miniBatchIterations = miniBatchIterations;
+		result.refinement = refinement;
+		result.budget = budget;
+		result.lab = lab;
+		result.accelerated = accelerated;
+		result.indexed = indexed;
+		result.cacheDir = cacheDir;
+		result.cacheSize = cacheSize;
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return a random source for one worksheet, seeded if a seed was given
+	 */
+	Random newRandom()
+	{
+		return seed == null ? new Random() : new Random(seed);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the grid and palette cache, or null if there isn't one
+	 */
+	WorksheetCache newCache() throws IOException
+	{
+		return cacheDir == null ? null : new WorksheetCache(cacheDir, cacheSize);
+	}
+}
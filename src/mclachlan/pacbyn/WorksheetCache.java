@@ -0,0 +1,416 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A directory of downsized grids and palettes, so regenerating a worksheet
+ * from the same image with only -k or -d changed skips straight to
+ * rendering.
+ * <p>
+ * Entries are addressed by a SHA-256 of the input file's bytes plus the
+ * settings that shape them: -w for a grid, and -w, -n, the method, -lab and
+ * the seed for a palette. A palette entry holds the palette, each pixel's
+ * palette index, and the seed drawn after palletizing that rendering starts
+ * from, so seeded random keys come out as they would have without the cache.
+ * Entries hold nothing but numbers, no serialised objects.
+ * Without a seed the first palette made for an image is reused.
+ * <p>
+ * Entries are small binary files written whole then moved into place, so
+ * several processes can share a directory. Reading an entry touches it,
+ * and once the directory grows past its size limit the least recently used
+ * entries are deleted.
+ */
+class WorksheetCache
+{
+	private static final int MAGIC = 0x50414342; // "PACB"
+	private static final int VERSION = 2;
+	private static final byte GRID = 1, PALETTE = 2;
+	private static final String SUFFIX = ".bin";
+
+	private final File dir;
+	private final long maxBytes;
+
+	/*-------------------------------------------------------------------------*/
+	WorksheetCache(File dir, long maxBytes) throws IOException
+	{
+		if (!dir.exists() && !dir.mkdirs())
+		{
+			throw new IOException("Can't create cache dir: "+dir);
+		}
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the SHA-256 of the file's bytes, as hex
+	 */
+	static String hash(File file) throws IOException
+	{
+		MessageDigest digest = sha256();
+		try (InputStream in = new FileInputStream(file))
+		{
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the SHA-256 of the bytes, as hex
+	 */
+	static String hash(byte[] bytes)
+	{
+		return hex(sha256().digest(bytes));
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the downsized grid of the given input, or null if not cached
+	 */
+	int[] getGrid(String inputHash, int pixelsInRow)
+	{
+		try (DataInputStream in = open(gridKey(inputHash, pixelsInRow), GRID))
+		{
+			return in == null ? null : readInts(in);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	void putGrid(String inputHash, int pixelsInRow, int[] pixels) throws IOException
+	{
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream out = header(entry, GRID);
+		writeInts(out, pixels);
+		out.flush();
+
+		store(gridKey(inputHash, pixelsInRow), entry);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the palletized grid of the given input, or null if not cached
+	 */
+	Palettised getPalette(String inputHash, Settings settings)
+	{
+		try (DataInputStream in = open(paletteKey(inputHash, settings), PALETTE))
+		{
+			if (in == null)
+			{
+				return null;
+			}
+
+			int[] palette = readInts(in);
+			int[] pixels = new int[in.readInt()];
+			for (int i = 0; i < pixels.length; i++)
+			{
+				pixels[i] = palette[palette.length <= 256 ? in.readUnsignedByte() : in.readUnsignedShort()];
+			}
+
+			return new Palettised(pixels, palette, in.readLong());
+		}
+		catch (IOException | ArrayIndexOutOfBoundsException e)
+		{
+			return null;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	void putPalette(String inputHash, Settings settings, Palettised palettised) throws IOException
+	{
+		int[] palette = palettised.palette;
+		if (palette.length > 65536)
+		{
+			return;
+		}
+
+		Map<Integer, Integer> indexOf = new HashMap<>();
+		for (int i = palette.length - 1; i >= 0; i--)
+		{
+			indexOf.put(palette[i], i);
+		}
+
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream out = header(entry, PALETTE);
+		writeInts(out, palette);
+		out.writeInt(palettised.pixels.length);
+		for (int pixel : palettised.pixels)
+		{
+			Integer index = indexOf.get(pixel);
+			if (index == null)
+			{
+				// not a palletized grid, don't cache it
+				return;
+			}
+			if (palette.length <= 256)
+			{
+				out.writeByte(index);
+			}
+			else
+			{
+				out.writeShort(index);
+			}
+		}
+
+		out.writeLong(palettised.renderSeed);
+		out.flush();
+
+		store(paletteKey(inputHash, settings), entry);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static String gridKey(String inputHash, int pixelsInRow)
+	{
+		return hash((inputHash+" w="+pixelsInRow).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * The settings a palette depends on. Accelerated k-means is left out as
+	 * it gives the same palette.
+	 */
+	private static String paletteKey(String inputHash, Settings settings)
+	{
+		String method;
+		if (settings.paletteMethod == Main.PaletteMethod.WU)
+		{
+			method = "wu refine "+settings.refinement;
+		}
+		else if (settings.paletteMethod == Main.PaletteMethod.AUTO)
+		{
+			// AUTO models and may run WU and mini-batch too
+			method = "auto budget "+settings.budget+" refine "+settings.refinement+
+				" minibatch "+settings.miniBatchSize+" "+settings.miniBatchIterations;
+		}
+		else if (settings.paletteMethod != Main.PaletteMethod.KMEANS)
+		{
+			method = settings.paletteMethod.name().toLowerCase(Locale.ROOT);
+		}
+		else if (settings.miniBatchSize > 0)
+		{
+			method = "minibatch "+settings.miniBatchSize+" "+settings.miniBatchIterations;
+		}
+		else
+		{
+			method = "kmeans";
+		}
+		if (settings.lab)
+		{
+			method += " lab";
+		}
+
+		return hash((inputHash+" w="+settings.pixelsInRow+" n="+settings.palletColours+
+			" m="+method+" seed="+settings.seed).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the entry, positioned after its header, or null if there is
+	 * 	no such entry
+	 */
+	private DataInputStream open(String key, byte kind) throws IOException
+	{
+		File file = new File(dir, key + SUFFIX);
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		DataInputStream result = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		if (result.readInt() != MAGIC || result.readByte() != VERSION || result.readByte() != kind)
+		{
+			result.close();
+			return null;
+		}
+
+		file.setLastModified(System.currentTimeMillis());
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	private static DataOutputStream header(ByteArrayOutputStream entry, byte kind) throws IOException
+	{
+		DataOutputStream result = new DataOutputStream(entry);
+		result.writeInt(MAGIC);
+		result.writeByte(VERSION);
+		result.writeByte(kind);
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Writes an entry to a temporary file and moves it into place, so no one
+	 * reads it half written, then evicts if the cache is over its limit.
+	 */
+	private void store(String key, ByteArrayOutputStream entry) throws IOException
+	{
+		File temp = File.createTempFile("entry", ".tmp", dir);
+		try
+		{
+			try (OutputStream out = new FileOutputStream(temp))
+			{
+				entry.writeTo(out);
+			}
+			Files.move(temp.toPath(), new File(dir, key + SUFFIX).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp.toPath());
+		}
+
+		evict();
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void evict()
+	{
+		File[] entries = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (entries == null)
+		{
+			return;
+		}
+
+		long total = 0;
+		long[] modified = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++)
+		{
+			total += entries[i].length();
+			modified[i] = entries[i].lastModified();
+			order[i] = i;
+		}
+
+		if (total <= maxBytes)
+		{
+			return;
+		}
+
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+		for (int i = 0; i < order.length && total > maxBytes; i++)
+		{
+			File entry = entries[order[i]];
+			long length = entry.length();
+			if (entry.delete())
+			{
+				total -= length;
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int[] readInts(DataInputStream in) throws IOException
+	{
+		int[] result = new int[in.readInt()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = in.readInt();
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values)
+		{
+			out.writeInt(value);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every JVM has SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static String hex(byte[] bytes)
+	{
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A grid replaced with palette colours, its palette, and the seed to
+	 * render with, drawn from the random source just after palletizing.
+	 */
+	static class Palettised
+	{
+		final int[] pixels;
+		final int[] palette;
+		final long renderSeed;
+
+		Palettised(int[] pixels, int[] palette, long renderSeed)
+		{
+			this.pixels = pixels;
+			this.palette = palette;
+			this.renderSeed = renderSeed;
+		}
+
+		/**
+		 * @return a random source to render with, the same every time
+		 */
+		Random newRandom()
+		{
+			return new Random(renderSeed);
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+
+/**
+ * Serves worksheets over HTTP, so a front end doesn't have to spawn a JVM
+ * per request.
+ * <p>
+ * POST an image as the request body to /worksheet, with any of n, w, k, m,
+ * d, seed, accel, mb, mbi, refine, budget, lab and indexed as query
+ * parameters (same meaning as the command line options), and the worksheet
+ * PNG is streamed back. For example:
+ * <pre>
+ * curl --data-binary @minion.png "http://localhost:8080/worksheet?n=10&amp;k=ALPHA_SEQ" -o out.png
+ * </pre>
+ * Requests are handled on virtual threads where the JVM has them (21 and
+ * up), falling back to a cached thread pool. Either way a semaphore caps
+ * how many requests palettise and render at once, the rest wait their
+ * turn cheaply while blocked.
+ * <p>
+ * Parameters past the limits below are refused with a 400, and bodies
+ * over the upload limit with a 413, before any work is done, so no one
+ * request can take all the memory or hold a CPU slot for good.
+ */
+class WorksheetServer
+{
+	/** most colours a palette may have, as many as an indexed PNG holds */
+	static final int MAX_COLOURS = 256;
+
+	/** most mini-batch iterations, 100 times the default */
+	static final int MAX_MINI_BATCH_ITERATIONS = 10_000;
+
+	/** most WU refinement passes */
+	static final int MAX_REFINEMENT = 100;
+
+	/** most time an AUTO palette may be given, in milliseconds */
+	static final int MAX_BUDGET = 60_000;
+
+	private final Settings defaults;
+	private final Semaphore cpuSlots;
+	private final WorksheetCache cache;
+	private final int maxUpload;
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @param defaults
+	 * 	settings for anything a request doesn't specify
+	 * @param maxConcurrent
+	 * 	how many requests may do CPU heavy work at once
+	 * @param maxUpload
+	 * 	the largest image a request may post, in bytes
+	 */
+	WorksheetServer(Settings defaults, int maxConcurrent, int maxUpload) throws IOException
+	{
+		// requests run side by side, so each palette gets one thread
+		this.defaults = defaults.copy();
+		this.defaults.parallelism = 1;
+		this.cpuSlots = new Semaphore(maxConcurrent, true);
+		this.cache = defaults.newCache();
+		this.maxUpload = maxUpload;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	void start(int port) throws IOException
+	{
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(newRequestExecutor());
+		server.createContext("/worksheet", this::handle);
+		server.start();
+
+		System.out.println("Serving worksheets on http://localhost:"+port+"/worksheet, with the "+
+			DistanceKernel.get().name()+" distance kernel");
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return a virtual thread per task executor if this JVM has one
+	 */
+	private static ExecutorService newRequestExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	@SuppressWarnings("try")
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+			{
+				sendError(exchange, 405, "POST an image to this URL");
+				return;
+			}
+
+			Settings settings;
+			try
+			{
+				settings = parseQuery(exchange.getRequestURI().getRawQuery());
+			}
+			catch (IllegalArgumentException e)
+			{
+				sendError(exchange, 400, "Invalid parameter: "+e.getMessage());
+				return;
+			}
+
+			String length = exchange.getRequestHeaders().getFirst("Content-Length");
+			if (length != null && isTooLong(length))
+			{
+				sendError(exchange, 413, "Images are limited to "+maxUpload+" bytes");
+				return;
+			}
+
+			// read no more than the limit, whatever Content-Length said
+			byte[] body;
+			try (InputStream in = exchange.getRequestBody())
+			{
+				body = in.readNBytes(maxUpload + 1);
+			}
+			if (body.length > maxUpload)
+			{
+				sendError(exchange, 413, "Images are limited to "+maxUpload+" bytes");
+				return;
+			}
+
+			BufferedImage page;
+			cpuSlots.acquire();
+			try
+			{
+				WorksheetCache.Palettised palettised = Main.prepare(settings, body, cache);
+				try (PipelineStats.Timer timer = PipelineStats.stage("render"))
+				{
+					page = Main.renderPage(settings, palettised.pixels, palettised.palette, palettised.newRandom());
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				// bad input: not an image, not square, unsuitable for the method
+				sendError(exchange, 400, e.getMessage() == null ? e.toString() : e.getMessage());
+				return;
+			}
+			catch (Exception e)
+			{
+				System.err.println("Worksheet request failed: "+exchange.getRequestURI());
+				e.printStackTrace();
+				sendError(exchange, 500, "Internal error");
+				return;
+			}
+			finally
+			{
+				cpuSlots.release();
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody();
+				PipelineStats.Timer timer = PipelineStats.stage("encode"))
+			{
+				ImageIO.write(page, "png", out);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			sendError(exchange, 503, "Interrupted");
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private Settings parseQuery(String query)
+	{
+		Settings result = defaults.copy();
+		if (query == null)
+		{
+			return result;
+		}
+
+		for (String pair : query.split("&"))
+		{
+			if (pair.isEmpty())
+			{
+				continue;
+			}
+
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+
+			try
+			{
+				switch (name)
+				{
+					case "n":
+						result.palletColours = Integer.parseInt(value);
+						break;
+					case "w":
+						result.pixelsInRow = Integer.parseInt(value);
+						break;
+					case "k":
+						result.colouringKeyMethod = Main.ColouringKey.valueOf(value);
+						break;
+					case "m":
+						result.paletteMethod = Main.PaletteMethod.valueOf(value.toUpperCase(Locale.ROOT));
+						break;
+					case "d":
+						result.debug = value.isEmpty() || Boolean.parseBoolean(value);
+						break;
+					case "seed":
+						result.seed = Long.parseLong(value);
+						break;
+					case "accel":
+						result.accelerated = value.isEmpty() || Boolean.parseBoolean(value);
+						break;
+					case "mb":
+						result.miniBatchSize = Integer.parseInt(value);
+						break;
+					case "mbi":
+						result.miniBatchIterations = Integer.parseInt(value);
+						break;
+					case "refine":
+						result.refinement = Integer.parseInt(value);
+						break;
+					case "budget":
+						result.budget = Integer.parseInt(value);
+						break;
+					case "lab":
+						result.lab = value.isEmpty() || Boolean.parseBoolean(value);
+						break;
+					case "indexed":
+						result.indexed = value.isEmpty() || Boolean.parseBoolean(value);
+						break;
+					default:
+						throw new IllegalArgumentException(name);
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException(name+"="+value);
+			}
+		}
+
+		checkRange("n", result.palletColours, 1, Math.min(MAX_COLOURS, result.colouringKeyMethod.labels));
+		checkRange("w", result.pixelsInRow, 1, PageRenderer.MAX_PIXELS_IN_ROW);
+		checkRange("mb", result.miniBatchSize, 0, PageRenderer.MAX_PIXELS_IN_ROW * PageRenderer.MAX_PIXELS_IN_ROW);
+		checkRange("mbi", result.miniBatchIterations, 1, MAX_MINI_BATCH_ITERATIONS);
+		checkRange("refine", result.refinement, 0, MAX_REFINEMENT);
+		checkRange("budget", result.budget, 0, MAX_BUDGET);
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static void checkRange(String name, int value, int min, int max)
+	{
+		if (value < min || value > max)
+		{
+			throw new IllegalArgumentException(name+" must be from "+min+" to "+max);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return true if a Content-Length header is over the upload limit
+	 */
+	private boolean isTooLong(String length)
+	{
+		try
+		{
+			return Long.parseLong(length.trim()) > maxUpload;
+		}
+		catch (NumberFormatException e)
+		{
+			// the bounded read still stops at the limit
+			return false;
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		byte[] body = (message+"\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+}
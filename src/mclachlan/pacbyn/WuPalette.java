@@ -0,0 +1,594 @@
+/*
+PACBYN
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see https://www.gnu.org/licenses/.
+*/
+
+package mclachlan.pacbyn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Xiaolin Wu's colour quantiser ("Efficient Statistical Computations for
+ * Optimal Color Quantization", Graphics Gems II).
+ * <p>
+ * The grid's colours go into a 33x33x33 histogram, 5 bits a channel plus
+ * an empty zero plane, holding the pixel count, channel sums and sum of
+ * squares of each cell. These are made cumulative, so the count, sums and
+ * variance of any box of cells take a handful of table reads. Starting
+ * from the whole colour cube, the box with the most variance is split
+ * wherever along whichever axis leaves the two halves with the least
+ * variance between them, until there are as many boxes as palette colours.
+ * Each box's colour is the mean of its pixels.
+ * <p>
+ * Past building the histogram nothing depends on the grid size, and
+ * nothing is iterated or random. The boxes can then seed a few passes of
+ * k-means over the grid's distinct colours, which polishes the palette
+ * towards what full k-means would find, at a fraction of the iterations.
+ * With -lab those passes run in CIE Lab; the boxes are always cut in sRGB.
+ */
+class WuPalette
+{
+	/** cells a side, 5 bits a channel plus the zero plane */
+	private static final int SIDE = 33;
+	private static final int CHANNEL_SHIFT = 3;
+
+	private static final int RED = 0, GREEN = 1, BLUE = 2;
+
+	/** stop refining once no centroid moves further than this */
+	private static final float EPSILON = 0.1F;
+
+	// cumulative moments per cell: pixel count, channel sums, sum of squares
+	private final long[] weights = new long[SIDE * SIDE * SIDE];
+	private final long[] sumR = new long[SIDE * SIDE * SIDE];
+	private final long[] sumG = new long[SIDE * SIDE * SIDE];
+	private final long[] sumB = new long[SIDE * SIDE * SIDE];
+	private final double[] squares = new double[SIDE * SIDE * SIDE];
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Builds the palette and replaces each input pixel with the colour of its
+	 * box, or of its cluster if refined.
+	 *
+	 * @param refinement
+	 * 	the number of k-means passes to polish the palette with, 0 for none
+	 * @param lab
+	 * 	true to refine in CIE Lab rather than sRGB
+	 * @param parallelism
+	 * 	the number of threads to refine with
+	 * @return the palette, at most palletColours entries
+	 */
+	@SuppressWarnings("try")
+	static int[] palletize(int palletColours, int[] inputPixels, int refinement, boolean lab, int parallelism)
+	{
+		ColourHistogram histogram;
+		WuPalette wu = new WuPalette();
+		try (PipelineStats.Timer timer = PipelineStats.stage("histogram"))
+		{
+			histogram = ColourHistogram.of(inputPixels);
+			wu.addColours(histogram.getColours(), histogram.getCounts(), histogram.size());
+			wu.accumulate();
+		}
+
+		Box[] boxes;
+		try (PipelineStats.Timer timer = PipelineStats.stage("wu"))
+		{
+			boxes = wu.split(Math.max(1, palletColours));
+		}
+
+		int n = histogram.size();
+		int[] colours = histogram.getColours();
+		int[] labels = new int[n];
+		int[] result;
+
+		if (refinement <= 0 || n == 0)
+		{
+			result = new int[boxes.length];
+			for (int j = 0; j < boxes.length; j++)
+			{
+				result[j] = wu.colour(boxes[j]);
+			}
+
+			// each colour goes to the box its cell is in
+			int[] tags = tag(boxes);
+			for (int i = 0; i < n; i++)
+			{
+				labels[i] = tags[cell(colours[i])];
+			}
+		}
+		else
+		{
+			try (PipelineStats.Timer timer = PipelineStats.stage("kmeans"))
+			{
+				float[] r = new float[n], g = new float[n], b = new float[n];
+				histogram.channels(r, g, b, lab);
+
+				float[] cr = new float[boxes.length], cg = new float[boxes.length], cb = new float[boxes.length];
+				if (lab)
+				{
+					// near enough to start from, the passes move them anyway
+					int[] start = new int[boxes.length];
+					for (int j = 0; j < boxes.length; j++)
+					{
+						start[j] = wu.colour(boxes[j]);
+					}
+					CieLab.toLab(start, boxes.length, cr, cg, cb);
+				}
+				else
+				{
+					for (int j = 0; j < boxes.length; j++)
+					{
+						double weight = wu.volume(boxes[j], wu.weights);
+						cr[j] = (float)(wu.volume(boxes[j], wu.sumR) / weight);
+						cg[j] = (float)(wu.volume(boxes[j], wu.sumG) / weight);
+						cb[j] = (float)(wu.volume(boxes[j], wu.sumB) / weight);
+					}
+				}
+
+				// the random source is never drawn from, the start is given
+				KMeans kMeans = new KMeans(r, g, b, histogram.getCounts(), n, boxes.length, parallelism, new Random(0));
+				kMeans.startFrom(cr, cg, cb, boxes.length);
+
+				// each pass assigns then moves the centroids, and the last
+				// assignment is against the final centroids
+				int iterations = kMeans.fit(refinement + 1, EPSILON);
+				PipelineStats.kMeans(n, kMeans.getK(), iterations, kMeans.isConverged());
+
+				result = kMeans.getColours(lab);
+				System.arraycopy(kMeans.getLabels(), 0, labels, 0, n);
+			}
+		}
+
+		try (PipelineStats.Timer timer = PipelineStats.stage("assign"))
+		{
+			int[] pixelIndex = histogram.getPixelIndex();
+			for (int i = 0; i < inputPixels.length; i++)
+			{
+				inputPixels[i] = result[labels[pixelIndex[i]]];
+			}
+		}
+
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private static int index(int r, int g, int b)
+	{
+		return (r * SIDE + g) * SIDE + b;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the histogram cell of a 0xRRGGBB colour
+	 */
+	private static int cell(int colour)
+	{
+		return index(
+			(((colour >> 16) & 0xFF) >> CHANNEL_SHIFT) + 1,
+			(((colour >> 8) & 0xFF) >> CHANNEL_SHIFT) + 1,
+			((colour & 0xFF) >> CHANNEL_SHIFT) + 1);
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private void addColours(int[] colours, int[] counts, int n)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			int r = (colours[i] >> 16) & 0xFF;
+			int g = (colours[i] >> 8) & 0xFF;
+			int b = (colours[i] >> 0) & 0xFF;
+			long count = counts[i];
+
+			int cell = cell(colours[i]);
+			weights[cell] += count;
+			sumR[cell] += count * r;
+			sumG[cell] += count * g;
+			sumB[cell] += count * b;
+			squares[cell] += count * (double)(r * r + g * g + b * b);
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Turns the histogram into cumulative moments: each cell then holds the
+	 * totals of every cell at or below it on all three axes.
+	 */
+	private void accumulate()
+	{
+		long[] areaW = new long[SIDE], areaR = new long[SIDE], areaG = new long[SIDE], areaB = new long[SIDE];
+		double[] areaSquares = new double[SIDE];
+
+		for (int r = 1; r < SIDE; r++)
+		{
+			Arrays.fill(areaW, 0);
+			Arrays.fill(areaR, 0);
+			Arrays.fill(areaG, 0);
+			Arrays.fill(areaB, 0);
+			Arrays.fill(areaSquares, 0);
+
+			for (int g = 1; g < SIDE; g++)
+			{
+				long lineW = 0, lineR = 0, lineG = 0, lineB = 0;
+				double lineSquares = 0;
+
+				for (int b = 1; b < SIDE; b++)
+				{
+					int i = index(r, g, b);
+					lineW += weights[i];
+					lineR += sumR[i];
+					lineG += sumG[i];
+					lineB += sumB[i];
+					lineSquares += squares[i];
+
+					areaW[b] += lineW;
+					areaR[b] += lineR;
+					areaG[b] += lineG;
+					areaB[b] += lineB;
+					areaSquares[b] += lineSquares;
+
+					int below = index(r - 1, g, b);
+					weights[i] = weights[below] + areaW[b];
+					sumR[i] = sumR[below] + areaR[b];
+					sumG[i] = sumG[below] + areaG[b];
+					sumB[i] = sumB[below] + areaB[b];
+					squares[i] = squares[below] + areaSquares[b];
+				}
+			}
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Splits the colour cube into at most maxColours boxes, stopping early
+	 * once no box can be split.
+	 */
+	private Box[] split(int maxColours)
+	{
+		Box[] boxes = new Box[maxColours];
+		double[] variances = new double[maxColours];
+		boxes[0] = new Box(0, SIDE - 1, 0, SIDE - 1, 0, SIDE - 1);
+
+		int count = 1;
+		int next = 0;
+		while (count < maxColours)
+		{
+			Box box = new Box();
+			if (cut(boxes[next], box))
+			{
+				boxes[count] = box;
+				variances[next] = boxes[next].cells() > 1 ? variance(boxes[next]) : 0;
+				variances[count] = box.cells() > 1 ? variance(box) : 0;
+				count++;
+			}
+			else
+			{
+				// can't be split, don't try again
+				variances[next] = 0;
+			}
+
+			next = 0;
+			for (int j = 1; j < count; j++)
+			{
+				if (variances[j] > variances[next])
+				{
+					next = j;
+				}
+			}
+			if (variances[next] <= 0)
+			{
+				break;
+			}
+		}
+
+		// with nothing in the cube there's nothing to colour
+		if (weights[index(SIDE - 1, SIDE - 1, SIDE - 1)] == 0)
+		{
+			return new Box[0];
+		}
+
+		Box[] result = new Box[count];
+		System.arraycopy(boxes, 0, result, 0, count);
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Splits a box in two where that takes the most variance out of it.
+	 *
+	 * @param into
+	 * 	receives the upper half, the box keeps the lower
+	 * @return false if there is nowhere to split it that leaves pixels on
+	 * 	both sides
+	 */
+	private boolean cut(Box box, Box into)
+	{
+		long wholeR = volume(box, sumR);
+		long wholeG = volume(box, sumG);
+		long wholeB = volume(box, sumB);
+		long wholeW = volume(box, weights);
+
+		int[] cuts = new int[3];
+		double maxR = maximise(box, RED, box.r0 + 1, box.r1, cuts, wholeR, wholeG, wholeB, wholeW);
+		double maxG = maximise(box, GREEN, box.g0 + 1, box.g1, cuts, wholeR, wholeG, wholeB, wholeW);
+		double maxB = maximise(box, BLUE, box.b0 + 1, box.b1, cuts, wholeR, wholeG, wholeB, wholeW);
+
+		int direction;
+		if (maxR >= maxG && maxR >= maxB)
+		{
+			direction = RED;
+		}
+		else if (maxG >= maxR && maxG >= maxB)
+		{
+			direction = GREEN;
+		}
+		else
+		{
+			direction = BLUE;
+		}
+
+		if (cuts[direction] < 0)
+		{
+			return false;
+		}
+
+		into.r1 = box.r1;
+		into.g1 = box.g1;
+		into.b1 = box.b1;
+		into.r0 = box.r0;
+		into.g0 = box.g0;
+		into.b0 = box.b0;
+
+		switch (direction)
+		{
+			case RED:
+				into.r0 = box.r1 = cuts[RED];
+				break;
+			case GREEN:
+				into.g0 = box.g1 = cuts[GREEN];
+				break;
+			default:
+				into.b0 = box.b1 = cuts[BLUE];
+				break;
+		}
+
+		return true;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * Finds the cut along one axis, in (first, last], that leaves the two
+	 * halves with the greatest sum of squared mean over weight, which is the
+	 * least variance left.
+	 *
+	 * @param cuts
+	 * 	receives the best cut for the axis, or -1 if no cut leaves pixels on
+	 * 	both sides
+	 * @return the measure at the best cut
+	 */
+	private double maximise(Box box, int direction, int first, int last, int[] cuts,
+		long wholeR, long wholeG, long wholeB, long wholeW)
+	{
+		long baseR = bottom(box, direction, sumR);
+		long baseG = bottom(box, direction, sumG);
+		long baseB = bottom(box, direction, sumB);
+		long baseW = bottom(box, direction, weights);
+
+		double max = 0;
+		cuts[direction] = -1;
+
+		for (int i = first; i < last; i++)
+		{
+			long halfR = baseR + top(box, direction, i, sumR);
+			long halfG = baseG + top(box, direction, i, sumG);
+			long halfB = baseB + top(box, direction, i, sumB);
+			long halfW = baseW + top(box, direction, i, weights);
+			if (halfW == 0 || halfW == wholeW)
+			{
+				// everything on one side
+				continue;
+			}
+
+			double measure = ((double)halfR * halfR + (double)halfG * halfG + (double)halfB * halfB) / halfW;
+
+			halfR = wholeR - halfR;
+			halfG = wholeG - halfG;
+			halfB = wholeB - halfB;
+			halfW = wholeW - halfW;
+			measure += ((double)halfR * halfR + (double)halfG * halfG + (double)halfB * halfB) / halfW;
+
+			if (measure > max)
+			{
+				max = measure;
+				cuts[direction] = i;
+			}
+		}
+
+		return max;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the sum of a moment over a box, from its eight corners
+	 */
+	private long volume(Box box, long[] moment)
+	{
+		return moment[index(box.r1, box.g1, box.b1)]
+			- moment[index(box.r1, box.g1, box.b0)]
+			- moment[index(box.r1, box.g0, box.b1)]
+			+ moment[index(box.r1, box.g0, box.b0)]
+			- moment[index(box.r0, box.g1, box.b1)]
+			+ moment[index(box.r0, box.g1, box.b0)]
+			+ moment[index(box.r0, box.g0, box.b1)]
+			- moment[index(box.r0, box.g0, box.b0)];
+	}
+
+	/*-------------------------------------------------------------------------*/
+	private double volume(Box box, double[] moment)
+	{
+		return moment[index(box.r1, box.g1, box.b1)]
+			- moment[index(box.r1, box.g1, box.b0)]
+			- moment[index(box.r1, box.g0, box.b1)]
+			+ moment[index(box.r1, box.g0, box.b0)]
+			- moment[index(box.r0, box.g1, box.b1)]
+			+ moment[index(box.r0, box.g1, box.b0)]
+			+ moment[index(box.r0, box.g0, box.b1)]
+			- moment[index(box.r0, box.g0, box.b0)];
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the corner terms of {@link #volume} at the box's lower bound
+	 * 	on the given axis, which stay put as a cut moves along it
+	 */
+	private static long bottom(Box box, int direction, long[] moment)
+	{
+		switch (direction)
+		{
+			case RED:
+				return -moment[index(box.r0, box.g1, box.b1)]
+					+ moment[index(box.r0, box.g1, box.b0)]
+					+ moment[index(box.r0, box.g0, box.b1)]
+					- moment[index(box.r0, box.g0, box.b0)];
+			case GREEN:
+				return -moment[index(box.r1, box.g0, box.b1)]
+					+ moment[index(box.r1, box.g0, box.b0)]
+					+ moment[index(box.r0, box.g0, box.b1)]
+					- moment[index(box.r0, box.g0, box.b0)];
+			default:
+				return -moment[index(box.r1, box.g1, box.b0)]
+					+ moment[index(box.r1, box.g0, box.b0)]
+					+ moment[index(box.r0, box.g1, box.b0)]
+					- moment[index(box.r0, box.g0, box.b0)];
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the rest of {@link #volume} with the box's upper bound on the
+	 * 	given axis moved to position
+	 */
+	private static long top(Box box, int direction, int position, long[] moment)
+	{
+		switch (direction)
+		{
+			case RED:
+				return moment[index(position, box.g1, box.b1)]
+					- moment[index(position, box.g1, box.b0)]
+					- moment[index(position, box.g0, box.b1)]
+					+ moment[index(position, box.g0, box.b0)];
+			case GREEN:
+				return moment[index(box.r1, position, box.b1)]
+					- moment[index(box.r1, position, box.b0)]
+					- moment[index(box.r0, position, box.b1)]
+					+ moment[index(box.r0, position, box.b0)];
+			default:
+				return moment[index(box.r1, box.g1, position)]
+					- moment[index(box.r1, box.g0, position)]
+					- moment[index(box.r0, box.g1, position)]
+					+ moment[index(box.r0, box.g0, position)];
+		}
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the summed squared distance of a box's pixels from their mean
+	 */
+	private double variance(Box box)
+	{
+		double r = volume(box, sumR);
+		double g = volume(box, sumG);
+		double b = volume(box, sumB);
+		return volume(box, squares) - (r * r + g * g + b * b) / volume(box, weights);
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return the mean colour of a box's pixels, as 0xRRGGBB
+	 */
+	private int colour(Box box)
+	{
+		long weight = volume(box, weights);
+		int r = (int)((volume(box, sumR) + weight / 2) / weight);
+		int g = (int)((volume(box, sumG) + weight / 2) / weight);
+		int b = (int)((volume(box, sumB) + weight / 2) / weight);
+		return (r << 16) | (g << 8) | b;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * @return per histogram cell, the index of the box it's in
+	 */
+	private static int[] tag(Box[] boxes)
+	{
+		int[] result = new int[SIDE * SIDE * SIDE];
+		for (int j = 0; j < boxes.length; j++)
+		{
+			Box box = boxes[j];
+			for (int r = box.r0 + 1; r <= box.r1; r++)
+			{
+				for (int g = box.g0 + 1; g <= box.g1; g++)
+				{
+					for (int b = box.b0 + 1; b <= box.b1; b++)
+					{
+						result[index(r, g, b)] = j;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/*-------------------------------------------------------------------------*/
+
+	/**
+	 * A box of histogram cells, exclusive of its lower bounds and inclusive
+	 * of its upper.
+	 */
+	private static class Box
+	{
+		int r0, r1, g0, g1, b0, b1;
+
+		Box()
+		{
+		}
+
+		Box(int r0, int r1, int g0, int g1, int b0, int b1)
+		{
+			this.r0 = r0;
+			this.r1 = r1;
+			this.g0 = g0;
+			this.g1 = g1;
+			this.b0 = b0;
+			this.b1 = b1;
+		}
+
+		int cells()
+		{
+			return (r1 - r0) * (g1 - g0) * (b1 - b0);
+		}
+	}
+}